@@ -35,11 +35,31 @@ public interface Allocator {
 		 * byteOffset + byteSize must be less or equal to MEMORY_SIZE
 		 */
 		public final int byteSize;
+		/**
+		 * Alignment (in bytes) of the usable address of the local chunk.
+		 * Always a power of two. 1 for unaligned chunks
+		 */
+		public final int alignment;
+		/**
+		 * Bytes of the local chunk that are not usable by the requester,
+		 * because they are required to reach the requested alignment.
+		 * Accounted as internal fragmentation by the simulation.
+		 * Allocators must not include these bytes in 
+		 * getInternalFragmentationBytes()
+		 */
+		public final int paddingBytes;
 		
 		public MemoryChunk(int byteOffset, int byteSize)
+		{
+			this(byteOffset, byteSize, 1, 0);
+		}
+
+		public MemoryChunk(int byteOffset, int byteSize, int alignment, int paddingBytes)
 		{
 			this.byteOffset = byteOffset;
 			this.byteSize = byteSize;
+			this.alignment = alignment;
+			this.paddingBytes = paddingBytes;
 		}
 		
 		/**
@@ -56,6 +76,37 @@ public interface Allocator {
 				throw new IllegalStateException(this+": byteSize is negative");
 			if (byteOffset + byteSize > MEMORY_SIZE)
 				throw new IllegalStateException(this+": byteOffset+byteSize is greater than available memory size ("+MEMORY_SIZE+")");
+			if (alignment <= 0 || Integer.bitCount(alignment) != 1)
+				throw new IllegalStateException(this+": alignment "+alignment+" is not a power of two");
+			if (paddingBytes < 0 || paddingBytes > byteSize)
+				throw new IllegalStateException(this+": paddingBytes "+paddingBytes+" is not in [0,byteSize]");
+			if (getAlignedOffset() - byteOffset > paddingBytes)
+				throw new IllegalStateException(this+": leading alignment padding exceeds paddingBytes ("+paddingBytes+")");
+		}
+
+		/**
+		 * Checks that the local chunk can serve a specific request.
+		 * Throws exceptions if it does not.
+		 * @param numBytes Number of bytes requested
+		 * @param requiredAlignment Alignment requested
+		 */
+		public void assertServes(int numBytes, int requiredAlignment) throws IllegalStateException
+		{
+			int aligned = getAlignedOffset();
+			if ((aligned & (requiredAlignment-1)) != 0)
+				throw new IllegalStateException(this+": address "+aligned+" is not aligned to "+requiredAlignment+" bytes");
+			if (aligned + numBytes > getEnd())
+				throw new IllegalStateException(this+": "+numBytes+" bytes requested at aligned address "+aligned+" exceed the chunk");
+		}
+
+		/**
+		 * Determines the first address in the local chunk that satisfies
+		 * the local alignment
+		 * @return Aligned address
+		 */
+		public int getAlignedOffset()
+		{
+			return (byteOffset + alignment - 1) & ~(alignment - 1);
 		}
 		
 		@Override
@@ -90,33 +141,154 @@ public interface Allocator {
 	};
 	
 	/**
-	 * Operation step counter to estimate runtime complexity
+	 * Phase of an allocator operation that steps are attributed to
+	 */
+	public enum StepCategory
+	{
+		/**
+		 * Locating a suitable free block or an allocated chunk
+		 */
+		SEARCH("search"),
+		/**
+		 * Splitting a free block into the served and the remaining part
+		 */
+		SPLIT("split"),
+		/**
+		 * Merging adjacent free blocks, or reclaiming unreachable chunks
+		 */
+		COALESCE("coalesce"),
+		/**
+		 * Updating allocator bookkeeping, e.g. headers, pointers, or
+		 * page state
+		 */
+		METADATA("metadata"),
+		/**
+		 * Moving chunk contents
+		 */
+		COPY("copy"),
+		/**
+		 * Anything not attributed to a specific phase
+		 */
+		OTHER("other");
+
+		private final String name;
+
+		StepCategory(String name)
+		{
+			this.name = name;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name;
+		}
+	}
+
+	/**
+	 * Operation step counter to estimate runtime complexity.
+	 * Steps are counted per category. Uncategorized steps count as
+	 * StepCategory.OTHER
 	 */
 	public final class StepCounter
 	{
-		private	int total = 0;
+		private final static int NUM_CATEGORIES = StepCategory.values().length;
+		private long total = 0;
+		private final long[] steps = new long[NUM_CATEGORIES];
+		private CacheSimulator cache;
+
+		/**
+		 * Sets the cache model that receives metadata touches
+		 * @param cache Cache model. May be null to disable cache simulation
+		 */
+		public void setCache(CacheSimulator cache)
+		{
+			this.cache = cache;
+		}
+
+		/**
+		 * Reports an access to allocator metadata located at the specified
+		 * address, e.g. a block header or free list link.
+		 * Does not count as a step
+		 * @param address Byte address in [0,MEMORY_SIZE)
+		 */
+		public void touch(int address)
+		{
+			if (cache != null)
+				cache.access(address);
+		}
 		
-		public void add(int steps)
+		public void add(long steps)
 		{
-			total += steps;
+			add(StepCategory.OTHER, steps);
 		}
 		
 		public void inc()
 		{
+			inc(StepCategory.OTHER);
+		}
+
+		public void add(StepCategory category, long steps)
+		{
+			this.steps[category.ordinal()] += steps;
+			total += steps;
+		}
+
+		public void inc(StepCategory category)
+		{
+			steps[category.ordinal()]++;
 			total++;
 		}
 		
-		public int getSteps()
+		public long getSteps()
 		{
 			return total;
 		}
+
+		public long getSteps(StepCategory category)
+		{
+			return steps[category.ordinal()];
+		}
 		
 		public void reset()
 		{
 			total = 0;
+			for (int i = 0; i < NUM_CATEGORIES; i++)
+				steps[i] = 0;
 		}
 	};
 	
+	/**
+	 * Receives notifications about chunks moved by their allocator
+	 */
+	public interface RelocationListener
+	{
+		/**
+		 * Notifies that a live chunk was moved to a new location.
+		 * The new chunk must have the same size, alignment, and padding
+		 * as the original one
+		 * @param from Chunk as it was previously reported
+		 * @param to New location of the same chunk
+		 */
+		void relocated(MemoryChunk from, MemoryChunk to);
+	}
+
+	/**
+	 * Receives notifications about garbage collections performed by
+	 * managed heap allocators
+	 */
+	public interface CollectionListener
+	{
+		/**
+		 * Notifies that a collection has completed.
+		 * The steps of the collection are also added to the step counter
+		 * of the operation that triggered it
+		 * @param pauseSteps Steps spent on the collection
+		 * @param copiedBytes Bytes moved by the collection
+		 */
+		void collected(long pauseSteps, int copiedBytes);
+	}
+
 	/**
 	 * Allocates a new homogenous chunk of memory from the available pool.
 	 * The method may return null or throw exceptions if allocation is currently
@@ -141,6 +313,195 @@ public interface Allocator {
 	 * parameters or internal inconsistencies were detected.
 	 */
 	void free( MemoryChunk chunk, StepCounter stepCounter) throws Exception;
+
+	/**
+	 * Allocates a new chunk whose usable address is aligned to the
+	 * specified power of two.
+	 * The default implementation over-allocates by alignment-1 bytes and
+	 * reports them as padding of the returned chunk.
+	 * Allocators that can place aligned chunks without padding should
+	 * override this method.
+	 * @param numBytes Size of the requested chunk (in bytes)
+	 * @param alignment Requested alignment (in bytes). Must be a power of two
+	 * @param stepCounter Counter object to add any operational steps to.
+	 * @return Reference to the new chunk, or null if no such was created.
+	 * @throws java.lang.Exception
+	 */
+	default MemoryChunk allocateAligned(int numBytes, int alignment, StepCounter stepCounter) throws Exception
+	{
+		if (alignment <= 1)
+			return allocate(numBytes, stepCounter);
+		MemoryChunk raw = allocate(numBytes + alignment - 1, stepCounter);
+		if (raw == null)
+			return null;
+		return new MemoryChunk(raw.byteOffset, raw.byteSize, alignment, raw.paddingBytes + alignment - 1);
+	}
+
+	/**
+	 * Resizes a previously allocated chunk.
+	 * If the returned chunk starts at a different offset than the original
+	 * one, its contents are considered copied, and the original chunk must
+	 * be released by the allocator.
+	 * Allocators that can grow or shrink chunks in place should override
+	 * this method.
+	 * The default implementation allocates a new chunk and frees the old
+	 * one. The alignment of the original chunk is not preserved.
+	 * @param chunk Chunk to resize
+	 * @param newSize New size of the chunk (in bytes)
+	 * @param stepCounter Counter object to add any operational steps to.
+	 * @return Reference to the resized chunk, or null if no such was
+	 * created. In the latter case, the original chunk remains allocated
+	 * @throws java.lang.Exception
+	 */
+	default MemoryChunk reallocate(MemoryChunk chunk, int newSize, StepCounter stepCounter) throws Exception
+	{
+		MemoryChunk rs = allocate(newSize, stepCounter);
+		if (rs == null)
+			return null;
+		free(chunk, stepCounter);
+		return rs;
+	}
+
+	/**
+	 * Allocates multiple chunks at once.
+	 * Allocators that amortize work across requests (e.g. refilling a
+	 * size class cache once per batch) should override this method.
+	 * The default implementation calls allocate() for each request.
+	 * @param sizes Sizes of the requested chunks (in bytes).
+	 * Only the first count elements are used
+	 * @param count Number of chunks to allocate
+	 * @param out Receives the allocated chunks in request order.
+	 * Must provide room for at least count elements
+	 * @param stepCounter Counter object to add any operational steps to.
+	 * Steps are accounted for the entire batch
+	 * @return Number of chunks that were successfully allocated. Allocation
+	 * stops at the first request that could not be served
+	 * @throws java.lang.Exception
+	 */
+	default int allocateBatch(int[] sizes, int count, MemoryChunk[] out, StepCounter stepCounter) throws Exception
+	{
+		for (int i = 0; i < count; i++)
+		{
+			out[i] = allocate(sizes[i], stepCounter);
+			if (out[i] == null)
+				return i;
+		}
+		return count;
+	}
+
+	/**
+	 * Queries whether allocateBatch() is overridden to amortize work
+	 * across the batch.
+	 * If not, trackers measure each allocation of a batch individually,
+	 * as if it were requested on its own.
+	 * The default implementation returns false
+	 * @return True if allocateBatch() is more than a loop over allocate()
+	 */
+	default boolean amortizesBatches()
+	{
+		return false;
+	}
+
+	/**
+	 * Frees multiple chunks at once.
+	 * Allocators that amortize work across requests (e.g. coalescing
+	 * all freed chunks in one pass) should override this method.
+	 * The default implementation calls free() for each chunk.
+	 * @param chunks Chunks to free. Only the first count elements are used
+	 * @param count Number of chunks to free
+	 * @param stepCounter Counter object to add any operational steps to.
+	 * Steps are accounted for the entire batch
+	 * @throws java.lang.Exception Exceptions may be thrown if invalid
+	 * parameters or internal inconsistencies were detected.
+	 */
+	default void freeBatch(MemoryChunk[] chunks, int count, StepCounter stepCounter) throws Exception
+	{
+		for (int i = 0; i < count; i++)
+			free(chunks[i], stepCounter);
+	}
+
+	/**
+	 * Queries whether freeBatch() is overridden to amortize work across
+	 * the batch.
+	 * If not, trackers measure each free of a batch individually, as if
+	 * it were requested on its own.
+	 * The default implementation returns false
+	 * @return True if freeBatch() is more than a loop over free()
+	 */
+	default boolean amortizesFrees()
+	{
+		return false;
+	}
+	/**
+	 * Sets the listener that must be notified whenever the local allocator
+	 * moves a live chunk, e.g. during compaction.
+	 * Relocation is only permitted during calls to the local allocator.
+	 * Allocators that never move chunks may ignore the listener, which is
+	 * what the default implementation does.
+	 * @param listener Listener to notify. Not copied by createNew()
+	 */
+	default void setRelocationListener(RelocationListener listener)
+	{}
+
+	/**
+	 * Sets the listener that must be notified whenever the local allocator
+	 * performs a garbage collection.
+	 * Allocators that do not collect garbage may ignore the listener, which
+	 * is what the default implementation does.
+	 * @param listener Listener to notify. Not copied by createNew()
+	 */
+	default void setCollectionListener(CollectionListener listener)
+	{}
+
+	/**
+	 * Sets the page residency map of the simulated address space.
+	 * Allocators may release pages of free memory back to the system by
+	 * calling PageMap.release() during any operation, similar to
+	 * madvise(DONTNEED). Releasing is optional and should add the
+	 * respective steps to the operation's counter.
+	 * The default implementation never releases pages.
+	 * @param pages Page map. Not copied by createNew()
+	 */
+	default void setPageMap(PageMap pages)
+	{}
+
+	/**
+	 * Sets the simulated owner (e.g. thread) of all subsequent requests,
+	 * until the next call.
+	 * The simulation drives each allocator from a single thread, so
+	 * allocators that partition memory by owner must not rely on the
+	 * calling thread there. Allocators may ignore the owner, which is what
+	 * the default implementation does.
+	 * @param owner Owner index, non-negative
+	 */
+	default void setOwner(int owner)
+	{}
+
+	/**
+	 * Receives named, allocator-specific samples
+	 */
+	public interface DetailSink
+	{
+		/**
+		 * Records a sample of a named detail metric
+		 * @param name Name of the metric. Should be the same instance on
+		 * every call, since it is used as map key
+		 * @param value Sampled value
+		 * @param percentage True if value is a fraction of 1
+		 */
+		void sample(String name, double value, boolean percentage);
+	}
+
+	/**
+	 * Reports allocator-specific metrics, e.g. the state of internal
+	 * partitions. Invoked along with the fragmentation evaluation after
+	 * each allocation.
+	 * The default implementation reports nothing
+	 * @param sink Receives the samples
+	 */
+	default void sampleDetails(DetailSink sink)
+	{}
+
 	/**
 	 * Calculates the current internal fragmentation level (in bytes).
 	 * Internal fragmentation denotes non-addressable memory within allocated
@@ -159,6 +520,22 @@ public interface Allocator {
 	*/
 	int getExternalFragmentationBytes( int allocRequestBytes);
 
+	/**
+	 * Reports the sizes of all currently allocatable memory regions to the
+	 * specified histogram.
+	 * Allows external fragmentation to be evaluated for many request sizes
+	 * at once. Implementations should clear the histogram and then include
+	 * every free region in a single pass.
+	 * The default implementation derives the histogram from
+	 * getExternalFragmentationBytes(), which is correct but requires one
+	 * call per power of two.
+	 * @param histogram Histogram to fill. Reused across calls
+	 */
+	default void fillFreeBlockHistogram(FreeBlockHistogram histogram)
+	{
+		FreeBlockHistogram.fillFrom(this, histogram);
+	}
+
 	/**
 	 * Calculates the amount of memory allocated in chunks.
 	 * This value should be the sum of all currently allocated memory
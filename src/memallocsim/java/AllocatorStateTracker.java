@@ -5,8 +5,15 @@
  */
 package memallocsim.java;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * State recorded for an individual allocator
@@ -15,28 +22,267 @@ import java.util.HashSet;
 public class AllocatorStateTracker
 {
 	/**
-	 * Bytes to calculate external fragmentation for
+	 * Bytes to calculate external fragmentation for.
+	 * Must be a power of two
 	 */
 	public final static int EXTERNAL_FRAGMENTATION_THRESHOLD = 65536;
+	/**
+	 * Smallest power of two to report in the external fragmentation curve
+	 */
+	private final static int MIN_CURVE_LOG2 = 4;
 	
 	
 	private Allocator allocator;
 	private boolean faulted = false;
 	private String faultedMessage;
+	/**
+	 * State at the time of the fault of the current run.
+	 * Recorded by endRun()
+	 */
+	private int faultedAtBytes, faultedAtChunks;
+	/**
+	 * Time spent in allocator operations during the current run
+	 */
+	private long runNanos = 0, operationStart;
+	/**
+	 * Time spent in allocator operations, one sample per run without
+	 * fault, in milliseconds
+	 */
+	private final Metric wallClockPerRun = new Metric(false);
 	private MetricSet thisRun = new MetricSet();
 	private final MetricSet allTime = new MetricSet();
+	/**
+	 * One sample per completed run: the mean of the respective run metric
+	 */
+	private final MetricSet runMeans = new MetricSet();
+	/**
+	 * Allocator-specific metrics reported via sampleDetails(), of the
+	 * current run and of all completed runs without fault
+	 */
+	private final LinkedHashMap<String, Metric> runDetails = new LinkedHashMap<>(),
+											allTimeDetails = new LinkedHashMap<>();
+	private final Allocator.DetailSink detailSink = this::sampleDetail;
 	private final Metric faultedAtByteCount = new Metric(false),
 						faultedAtAllocation = new Metric(false);
 	private int currentlyAllocatedBytes = 0;
+	/**
+	 * Sum of MemoryChunk.paddingBytes of all allocated chunks
+	 */
+	private int paddingBytes = 0;
 	private HashSet<String> faultMessages = new HashSet<>();
 
 	private final ArrayList<Allocator.MemoryChunk>	allocatedList = new ArrayList<>();
+	/**
+	 * Index of each chunk in allocatedList, built by the first relocation
+	 * of an operation, so that moving all chunks costs linear time.
+	 * Only valid while relocationIndexValid is set
+	 */
+	private final HashMap<Allocator.MemoryChunk, Integer> relocationIndex = new HashMap<>();
+	private boolean relocationIndexValid = false;
 
 	private final Allocator.StepCounter counter = new Allocator.StepCounter();
+	private final FreeBlockHistogram freeBlocks = new FreeBlockHistogram();
+	/**
+	 * Cache model fed with chunk and metadata accesses. Null if disabled
+	 */
+	private CacheSimulator cache;
+	private final PageMap pages = new PageMap();
+	/**
+	 * Index of the chunk currently being reallocated, -1 if none.
+	 * Its pages are unpinned for the duration of the call
+	 */
+	private int reallocatingIndex = -1;
+	private Allocator.MemoryChunk[] batch = new Allocator.MemoryChunk[16];
+	/**
+	 * Series over the operations of the current run. Null if disabled
+	 */
+	private TimeSeries occupiedSeries, internalSeries, externalSeries, liveChunkSeries;
+	/**
+	 * Series aggregated across all included runs, in the order of
+	 * getTimeSeries(). Null if disabled
+	 */
+	private TimeSeries[] recordedSeries;
+	/**
+	 * Index of the next operation within the current run
+	 */
+	private long operationIndex = 0;
+
+	/**
+	 * Bytes moved by the allocator during the current operation
+	 */
+	private int relocatedBytes = 0;
+	/**
+	 * Garbage collections performed during the current run
+	 */
+	private int collections = 0;
 
 	public AllocatorStateTracker(Allocator alloc)
 	{
 		allocator = alloc;	
+		allocator.setRelocationListener(this::relocated);
+		allocator.setCollectionListener(this::collected);
+		allocator.setPageMap(pages);
+	}
+
+	private void sampleDetail(String name, double value, boolean percentage)
+	{
+		Metric m = runDetails.get(name);
+		if (m == null)
+		{
+			m = new Metric(percentage);
+			runDetails.put(name, m);
+		}
+		m.include(value);
+	}
+
+	private void collected(long pauseSteps, int copiedBytes)
+	{
+		collections++;
+		thisRun.gcPauseCost.include(pauseSteps);
+		thisRun.gcCopiedBytes.include(copiedBytes);
+	}
+
+	/**
+	 * Replaces a chunk moved by the allocator.
+	 * Invoked by the allocator during an operation, so any exception
+	 * thrown here faults the allocator
+	 * @param from Previous location of the chunk
+	 * @param to New location of the chunk
+	 */
+	private void relocated(Allocator.MemoryChunk from, Allocator.MemoryChunk to)
+	{
+		to.assertValidity();
+		if (to.byteSize != from.byteSize || to.alignment != from.alignment || to.paddingBytes != from.paddingBytes)
+			throw new IllegalStateException(allocator+" relocated chunk "+from+" to "+to+", changing its size, alignment, or padding");
+		relocatedBytes += from.byteSize;
+		touchRange(from.byteOffset, from.byteSize);
+		touchRange(to.byteOffset, to.byteSize);
+		pages.touch(to.byteOffset, to.byteSize);
+		if (!relocationIndexValid)
+		{
+			relocationIndex.clear();
+			for (int i = 0; i < allocatedList.size(); i++)
+				relocationIndex.put(allocatedList.get(i), i);
+			relocationIndexValid = true;
+		}
+		Integer at = relocationIndex.remove(from);
+		if (at != null)
+		{
+			relocationIndex.put(to, at);
+			allocatedList.set(at, to);
+			if (at != reallocatingIndex)
+			{
+				pages.removeLive(from);
+				pages.addLive(to);
+			}
+			return;
+		}
+		//chunks allocated earlier in the current batch are not yet listed
+		for (int i = 0; i < batch.length && batch[i] != null; i++)
+			if (batch[i].equals(from))
+			{
+				batch[i] = to;
+				return;
+			}
+		throw new IllegalStateException(allocator+" relocated chunk "+from+", which is not allocated");
+	}
+
+	/**
+	 * Enables cache simulation for the local allocator
+	 * @param cache Cache model exclusive to the local tracker
+	 */
+	void enableCacheSimulation(CacheSimulator cache)
+	{
+		this.cache = cache;
+		counter.setCache(cache);
+	}
+
+	/**
+	 * Enables time series recording for the local allocator
+	 * @param capacity Number of buckets per series
+	 */
+	void enableTimeSeries(int capacity)
+	{
+		occupiedSeries = new TimeSeries("occupied_bytes", capacity);
+		internalSeries = new TimeSeries("internal_fragmentation", capacity);
+		externalSeries = new TimeSeries("external_fragmentation", capacity);
+		liveChunkSeries = new TimeSeries("live_chunks", capacity);
+		recordedSeries = new TimeSeries[]{
+			new TimeSeries("occupied_bytes", capacity),
+			new TimeSeries("internal_fragmentation", capacity),
+			new TimeSeries("external_fragmentation", capacity),
+			new TimeSeries("live_chunks", capacity)};
+	}
+
+	/**
+	 * Retrieves all time series, aggregated across the included runs
+	 * @return Series, or null if recording is disabled
+	 */
+	public TimeSeries[] getTimeSeries()
+	{
+		return recordedSeries;
+	}
+
+	private void touchRange(int offset, int numBytes)
+	{
+		if (cache != null)
+			cache.accessRange(offset, numBytes);
+	}
+
+	/**
+	 * Simulates an access to a byte of an allocated chunk.
+	 * Does nothing if cache simulation is disabled or the allocator has
+	 * faulted
+	 * @param chunkIndex Chunk to access
+	 * @param byteOffset Offset relative to the chunk's aligned address
+	 */
+	public void access(int chunkIndex, int byteOffset)
+	{
+		if (cache == null || faulted)
+			return;
+		cache.access(allocatedList.get(chunkIndex).getAlignedOffset() + byteOffset);
+	}
+
+	private void beginOperation()
+	{
+		counter.reset();
+		relocatedBytes = 0;
+		relocationIndexValid = false;
+		operationStart = System.nanoTime();
+	}
+
+	/**
+	 * Adds the time since beginOperation() to the wall-clock time of the
+	 * current run. Called right after the allocator call, so that
+	 * verification and cache simulation are not timed
+	 */
+	private void stopTimer()
+	{
+		runNanos += System.nanoTime() - operationStart;
+	}
+
+	/**
+	 * Records the metrics of the current operation
+	 * @param operations Number of allocations, frees, or reallocations
+	 * performed by the operation. Its steps are distributed evenly across
+	 * all of them
+	 */
+	private void endOperation(int operations)
+	{
+		for (Allocator.StepCategory c : Allocator.StepCategory.values())
+		{
+			double steps = (double)counter.getSteps(c) / operations;
+			for (int i = 0; i < operations; i++)
+				thisRun.stepsByCategory[c.ordinal()].include(steps);
+		}
+		thisRun.relocatedBytes.include(relocatedBytes);
+		thisRun.residentPages.include(pages.countResidentPages());
+		if (occupiedSeries != null)
+		{
+			occupiedSeries.include(operationIndex, allocator.getOccupiedMemoryBytes());
+			liveChunkSeries.include(operationIndex, allocatedList.size());
+		}
+		operationIndex += operations;
 	}
 
 	void verifyIntegrity(int numAllocated)
@@ -56,7 +302,7 @@ public class AllocatorStateTracker
 		}
 		catch (IllegalStateException ex)
 		{
-			fault(ex.getMessage());
+			fault(ex.toString());
 		}
 	}
 
@@ -64,22 +310,32 @@ public class AllocatorStateTracker
 	{
 		final double internalBytes = allocator.getInternalFragmentationBytes();
 		final double occupiedBytes = allocator.getOccupiedMemoryBytes();
-		double internal = (double)internalBytes / occupiedBytes;
-		if (internalBytes < 0 || internalBytes >= occupiedBytes)
-			throw new IllegalArgumentException(allocator+": The value returned by getInternalFragmentationBytes() = "+internalBytes+" exceeds the valid range [0,getOccupiedMemoryBytes() = "+occupiedBytes+")");
-		thisRun.internalFragmentation.include(internal);
-		thisRun.externalFragmentation.include((double)allocator.getExternalFragmentationBytes(EXTERNAL_FRAGMENTATION_THRESHOLD) / getTheoreticalFreeBytes());
+		if (internalBytes < 0 || internalBytes + paddingBytes >= occupiedBytes)
+			throw new IllegalArgumentException(allocator+": The value returned by getInternalFragmentationBytes() = "+internalBytes+" plus alignment padding "+paddingBytes+" exceeds the valid range [0,getOccupiedMemoryBytes() = "+occupiedBytes+")");
+		thisRun.internalFragmentation.include((internalBytes + paddingBytes) / occupiedBytes);
+		thisRun.alignmentPadding.include(paddingBytes / occupiedBytes);
+		allocator.fillFreeBlockHistogram(freeBlocks);
+		final double freeBytes = getTheoreticalFreeBytes();
+		final double external = freeBlocks.getExternalFragmentationBytes(FreeBlockHistogram.bucketOf(EXTERNAL_FRAGMENTATION_THRESHOLD)) / freeBytes;
+		thisRun.externalFragmentation.include(external);
+		if (internalSeries != null)
+		{
+			internalSeries.include(operationIndex, (internalBytes + paddingBytes) / occupiedBytes);
+			externalSeries.include(operationIndex, external);
+		}
+		for (int k = MIN_CURVE_LOG2; k < thisRun.externalFragmentationCurve.length; k++)
+			thisRun.externalFragmentationCurve[k].include(freeBlocks.getExternalFragmentationBytes(k) / freeBytes);
+		allocator.sampleDetails(detailSink);
 	}
 	private void fault(String msg)
 	{
 		if (faulted)
 			return;
 		//System.out.println(allocator+": "+ msg);
-		faultedAtByteCount.include(currentlyAllocatedBytes);
-		faultedAtAllocation.include(allocatedList.size());
+		faultedAtBytes = currentlyAllocatedBytes;
+		faultedAtChunks = allocatedList.size();
 		faulted = true;
 		faultedMessage = msg;
-		faultMessages.add(msg);
 	}
 
 	public boolean hasFaulted()
@@ -97,33 +353,130 @@ public class AllocatorStateTracker
 	 * integrity is violated.
 	 */
 	public void allocate(int numBytes, int numAllocated) throws Exception
+	{
+		allocate(numBytes, 1, numAllocated);
+	}
+
+	/**
+	 * Allocates a new aligned chunk using the local allocator.
+	 * Once the allocator has faulted, the method stops doing anything.
+	 * A fault is caused by the allocator throwing an exception, or
+	 * returning null or a misaligned chunk
+	 * @param numBytes Size of the requested chunk in bytes
+	 * @param alignment Requested alignment in bytes. 1 issues a regular
+	 * allocation
+	 * @throws Exception Exceptions may be thrown in case internal
+	 * integrity is violated.
+	 */
+	public void allocate(int numBytes, int alignment, int numAllocated) throws Exception
 	{
 		if (faulted)
 			return;
-		counter.reset();
+		beginOperation();
 		Allocator.MemoryChunk rs;
 		try
 		{
-			rs = allocator.allocate(numBytes,counter);
+			rs = alignment > 1
+					? allocator.allocateAligned(numBytes, alignment, counter)
+					: allocator.allocate(numBytes,counter);
+			stopTimer();
 			if (rs == null)
 				throw new Exception(allocator+ ".allocate() returned null");
 			rs.assertValidity();
+			rs.assertServes(numBytes, alignment);
 			currentlyAllocatedBytes += rs.byteSize;
+			paddingBytes += rs.paddingBytes;
+			pages.addLive(rs);
+			pages.touch(rs.byteOffset, rs.byteSize);
 			updateFragmentation();
 		}
 		catch (Exception ex)
 		{
-			fault(ex.getMessage());
+			fault(ex.toString());
 			return;
 		}
 		thisRun.allocationCost.include(counter.getSteps());
+		if (alignment > 1)
+			thisRun.alignedAllocationCost.include(counter.getSteps());
+		touchRange(rs.getAlignedOffset(), numBytes);
 		allocatedList.add(rs);
+		endOperation(1);
 		if (numAllocated != allocatedList.size())
 			throw new IllegalStateException();
 		if (numAllocated != allocatedList.size())
 			throw new IllegalStateException();
 	}
 
+	/**
+	 * Allocates multiple chunks at once using the local allocator.
+	 * If the allocator amortizes batches, the steps spent on the whole
+	 * batch are distributed evenly across all of its allocations.
+	 * Otherwise each chunk is allocated and measured individually, so that
+	 * batching does not change the cost and fragmentation samples.
+	 * Once the allocator has faulted, the method stops doing anything.
+	 * @param sizes Sizes of the requested chunks in bytes
+	 * @param count Number of chunks to allocate
+	 * @param numAllocated Number of chunks expected to be allocated once
+	 * the batch has completed
+	 * @throws Exception Exceptions may be thrown in case internal
+	 * integrity is violated.
+	 */
+	public void allocateBatch(int[] sizes, int count, int numAllocated) throws Exception
+	{
+		if (faulted)
+			return;
+		if (!allocator.amortizesBatches())
+		{
+			for (int i = 0; i < count; i++)
+				allocate(sizes[i], 1, numAllocated - count + i + 1);
+			return;
+		}
+		beginOperation();
+		ensureBatchCapacity(count);
+		try
+		{
+			int done = allocator.allocateBatch(sizes, count, batch, counter);
+			stopTimer();
+			if (done != count)
+				throw new Exception(allocator+ ".allocateBatch() allocated only "+done+"/"+count+" chunks");
+			for (int i = 0; i < count; i++)
+			{
+				if (batch[i] == null)
+					throw new Exception(allocator+ ".allocateBatch() returned null");
+				batch[i].assertValidity();
+				batch[i].assertServes(sizes[i], 1);
+				currentlyAllocatedBytes += batch[i].byteSize;
+				paddingBytes += batch[i].paddingBytes;
+				pages.addLive(batch[i]);
+				pages.touch(batch[i].byteOffset, batch[i].byteSize);
+			}
+			updateFragmentation();
+		}
+		catch (Exception ex)
+		{
+			Arrays.fill(batch, null);
+			fault(ex.toString());
+			return;
+		}
+		double stepsPerAllocation = (double)counter.getSteps() / count;
+		for (int i = 0; i < count; i++)
+		{
+			thisRun.allocationCost.include(stepsPerAllocation);
+			touchRange(batch[i].getAlignedOffset(), sizes[i]);
+			allocatedList.add(batch[i]);
+			batch[i] = null;
+		}
+		endOperation(count);
+		if (numAllocated != allocatedList.size())
+			throw new IllegalStateException();
+	}
+
+	private void ensureBatchCapacity(int count)
+	{
+		if (batch.length < count)
+			batch = new Allocator.MemoryChunk[Math.max(count, batch.length*2)];
+	}
+
 	/**
 	 * Retrieves a cost metric of all allocation operations
 	 * @return Cost metric
@@ -168,6 +521,31 @@ public class AllocatorStateTracker
 		return allTime.externalFragmentation;
 	}
 
+	/**
+	 * Checks whether the per-run means of all key metrics have reached
+	 * the requested confidence interval width.
+	 * Allocators that have not completed a single run without fault
+	 * are considered converged, since there is nothing to estimate
+	 * @param z Quantile of the standard normal distribution
+	 * @param relativeHalfWidth Maximum allowed half width of the confidence
+	 * interval, relative to the respective mean
+	 * @return true if no more runs are required for this allocator
+	 */
+	public boolean hasConverged(double z, double relativeHalfWidth)
+	{
+		return runMeans.hasConverged(z, relativeHalfWidth);
+	}
+
+	/**
+	 * Retrieves the per-run means of all key metrics, one sample per run
+	 * completed without fault
+	 * @return Metric set
+	 */
+	MetricSet getRunMeans()
+	{
+		return runMeans;
+	}
+
 	/**
 	 * Calculates how much memory should theoretically remain for
 	 * allocation
@@ -189,6 +567,30 @@ public class AllocatorStateTracker
 		return getTheoreticalFreeBytes() - allocator.getInternalFragmentationBytes() - allocator.getExternalFragmentationBytes(allocationBytes);
 	}
 
+	/**
+	 * Sets the simulated owner of subsequent requests
+	 * @param owner Owner index, non-negative
+	 */
+	void setOwner(int owner)
+	{
+		allocator.setOwner(owner);
+	}
+
+	/**
+	 * Exchanges the indices of two allocated chunks.
+	 * Does nothing if the local allocator has faulted
+	 * @param a Index of the first chunk
+	 * @param b Index of the second chunk
+	 */
+	void swapChunks(int a, int b)
+	{
+		if (faulted)
+			return;
+		Allocator.MemoryChunk t = allocatedList.get(a);
+		allocatedList.set(a, allocatedList.get(b));
+		allocatedList.set(b, t);
+	}
+
 	/**
 	 * Frees a specific chunk from the local allocator.
 	 * If the local allocator has previously faulted, then nothing is
@@ -205,11 +607,14 @@ public class AllocatorStateTracker
 			throw new IllegalStateException();
 		
 		Allocator.MemoryChunk chunk = allocatedList.remove(chunkIndex);
-		counter.reset();
+		beginOperation();
 		currentlyAllocatedBytes -= chunk.byteSize;
+		paddingBytes -= chunk.paddingBytes;
+		pages.removeLive(chunk);
 		try
 		{
 			allocator.free(chunk,counter);
+			stopTimer();
 		}
 		catch (Exception ex)
 		{
@@ -217,10 +622,131 @@ public class AllocatorStateTracker
 			return 0;
 		}
 		thisRun.freeCost.include(counter.getSteps());
+		endOperation(1);
 	//				updateFragmentation();
 		return chunk.byteSize;
 	}
 
+	/**
+	 * Frees multiple chunks at once from the local allocator.
+	 * If the allocator amortizes frees, the steps spent on the whole batch
+	 * are distributed evenly across all of its chunks.
+	 * Otherwise each chunk is freed and measured individually, so that
+	 * batching does not change the cost samples.
+	 * If the local allocator has previously faulted, then nothing is
+	 * done.
+	 * @param chunkIndices Chunks to free. Must be distinct and sorted in
+	 * descending order, so that removal does not shift pending indices
+	 * @param count Number of chunks to free
+	 * @param numAllocated Number of chunks currently allocated
+	 * @return Number of bytes that were freed, or 0 if a fault occurred
+	 * @throws Exception 
+	 */
+	public int freeBatch(int[] chunkIndices, int count, int numAllocated) throws Exception
+	{
+		if (faulted)
+			return 0;
+		if (numAllocated != allocatedList.size())
+			throw new IllegalStateException();
+		if (!allocator.amortizesFrees())
+		{
+			int bytes = 0;
+			for (int i = 0; i < count; i++)
+				bytes += free(chunkIndices[i], numAllocated - i);
+			return faulted ? 0 : bytes;
+		}
+		
+		ensureBatchCapacity(count);
+		int bytes = 0;
+		for (int i = 0; i < count; i++)
+		{
+			batch[i] = allocatedList.remove(chunkIndices[i]);
+			bytes += batch[i].byteSize;
+			paddingBytes -= batch[i].paddingBytes;
+			pages.removeLive(batch[i]);
+		}
+		beginOperation();
+		currentlyAllocatedBytes -= bytes;
+		try
+		{
+			allocator.freeBatch(batch, count, counter);
+			stopTimer();
+		}
+		catch (Exception ex)
+		{
+			fault(ex.toString());
+			return 0;
+		}
+		finally
+		{
+			for (int i = 0; i < count; i++)
+				batch[i] = null;
+		}
+		double stepsPerFree = (double)counter.getSteps() / count;
+		for (int i = 0; i < count; i++)
+			thisRun.freeCost.include(stepsPerFree);
+		endOperation(count);
+		return bytes;
+	}
+
+	/**
+	 * Resizes a specific chunk using the local allocator.
+	 * If the chunk moved, the bytes preserved from the original chunk are
+	 * recorded as copied.
+	 * If the local allocator has previously faulted, then nothing is
+	 * done.
+	 * @param chunkIndex Chunk to resize
+	 * @param newSize New size of the chunk in bytes
+	 * @param numAllocated Number of chunks currently allocated
+	 * @throws Exception 
+	 */
+	public void reallocate(int chunkIndex, int newSize, int numAllocated) throws Exception
+	{
+		if (faulted)
+			return;
+		if (numAllocated != allocatedList.size())
+			throw new IllegalStateException();
+
+		Allocator.MemoryChunk chunk = allocatedList.get(chunkIndex);
+		beginOperation();
+		Allocator.MemoryChunk rs;
+		pages.removeLive(chunk);
+		reallocatingIndex = chunkIndex;
+		try
+		{
+			rs = allocator.reallocate(chunk, newSize, counter);
+			stopTimer();
+			if (rs == null)
+				throw new Exception(allocator+ ".reallocate() returned null");
+			rs.assertValidity();
+			rs.assertServes(newSize, 1);
+			currentlyAllocatedBytes += rs.byteSize - chunk.byteSize;
+			paddingBytes += rs.paddingBytes - chunk.paddingBytes;
+			pages.addLive(rs);
+			pages.touch(rs.byteOffset, rs.byteSize);
+			updateFragmentation();
+		}
+		catch (Exception ex)
+		{
+			fault(ex.toString());
+			return;
+		}
+		finally
+		{
+			reallocatingIndex = -1;
+		}
+		//the chunk may have been relocated during the call
+		Allocator.MemoryChunk current = allocatedList.set(chunkIndex, rs);
+		thisRun.reallocationCost.include(counter.getSteps());
+		endOperation(1);
+		boolean inPlace = rs.byteOffset == current.byteOffset;
+		thisRun.reallocationInPlace.include(inPlace ? 1 : 0);
+		thisRun.reallocationCopiedBytes.include(inPlace ? 0 : Math.min(chunk.byteSize, newSize));
+		if (!inPlace)
+			touchRange(current.getAlignedOffset(), Math.min(chunk.byteSize, newSize));
+		touchRange(rs.getAlignedOffset(), newSize);
+	}
+
 	/**
 	 * Appends the local state to the specified builder for console output
 	 * @param builder 
@@ -250,32 +776,178 @@ public class AllocatorStateTracker
 		{
 			builder
 					.append("    allocation cost: ").append(getAllocationCost()).append("\n")
-					.append("    free cost: ").append(getFreeCost()).append("\n")
+					.append("    free cost: ").append(getFreeCost()).append("\n");
+			if (allTime.reallocationCost.isSet())
+				builder
+					.append("    reallocation cost: ").append(allTime.reallocationCost).append("\n")
+					.append("    reallocations in place: ").append(allTime.reallocationInPlace).append("\n")
+					.append("    bytes copied per reallocation: ").append(allTime.reallocationCopiedBytes).append("\n");
+			appendCostBreakdown(builder);
+			if (allTime.relocatedBytes.getMax() > 0)
+				builder
+					.append("    bytes relocated per operation: ").append(allTime.relocatedBytes).append("\n");
+			if (allTime.gcCollections.getMax() > 0)
+				builder
+					.append("    garbage collections per run: ").append(allTime.gcCollections).append("\n")
+					.append("    pause cost per collection: ").append(allTime.gcPauseCost).append("\n")
+					.append("    bytes copied per collection: ").append(allTime.gcCopiedBytes).append("\n");
+			builder
 					.append("    relative internal fragmentation: ")
 						.append(getInternalFragmentation())
-						.append("\n")
+						.append("\n");
+			if (allTime.alignedAllocationCost.isSet())
+				builder
+					.append("    aligned allocation cost: ").append(allTime.alignedAllocationCost).append("\n")
+					.append("    relative alignment padding (part of internal fragmentation): ")
+						.append(allTime.alignmentPadding)
+						.append("\n");
+			builder
 					.append("    relative external fragmentation (at ")
 						.append(EXTERNAL_FRAGMENTATION_THRESHOLD)
 						.append(" bytes): ")
 						.append(getExternalFragmentation())
 						.append("\n");
+			if (allTime.externalFragmentationCurve[MIN_CURVE_LOG2].isSet())
+			{
+				builder.append("    avg relative external fragmentation by request size:");
+				for (int k = MIN_CURVE_LOG2; k < allTime.externalFragmentationCurve.length; k += 2)
+					builder.append(" ").append(1 << k).append(": ")
+							.append((double)Math.round(allTime.externalFragmentationCurve[k].getMean()*1000)/10).append("%");
+				builder.append("\n");
+			}
+			if (allTime.residentPages.isSet())
+				builder
+					.append("    resident pages (of ").append(PageMap.NUM_PAGES).append("): ").append(allTime.residentPages).append("\n")
+					.append("    pages released per run: ").append(allTime.releasedPages).append("\n")
+					.append("    released pages touched again per run: ").append(allTime.refaultedPages).append("\n");
+			if (allTime.cacheMissRate[0].isSet())
+			{
+				builder.append("    avg cache miss rate (").append(cache).append("):");
+				for (int l = 0; l < cache.countLevels(); l++)
+					builder.append(" L").append(l+1).append(" ")
+							.append((double)Math.round(allTime.cacheMissRate[l].getMean()*10000)/100).append("%");
+				builder.append("\n");
+			}
+			for (Map.Entry<String, Metric> e : allTimeDetails.entrySet())
+				builder.append("    ").append(e.getKey()).append(": ").append(e.getValue()).append("\n");
+			if (runMeans.allocationCost.countInclusions() > 1)
+				builder
+					.append("    95% confidence of per-run means (")
+						.append(runMeans.allocationCost.countInclusions())
+						.append(" runs): allocation cost ").append(confidence(runMeans.allocationCost))
+						.append(", free cost ").append(confidence(runMeans.freeCost))
+						.append("\n");
+			if (wallClockPerRun.isSet())
+				builder
+					.append("    wall-clock ms per run in allocator operations: ").append(wallClockPerRun).append("\n");
+		}
+	}
+	/**
+	 * Appends the mean steps per operation of each step category that
+	 * was used, and its share of the total
+	 */
+	private void appendCostBreakdown(StringBuilder builder)
+	{
+		double total = 0;
+		for (Metric m : allTime.stepsByCategory)
+			total += m.getMean();
+		if (total <= 0)
+			return;
+		builder.append("    avg steps per operation by phase:");
+		String separator = " ";
+		for (Allocator.StepCategory c : Allocator.StepCategory.values())
+		{
+			double mean = allTime.stepsByCategory[c.ordinal()].getMean();
+			if (mean <= 0)
+				continue;
+			builder.append(separator).append(c).append(" ")
+					.append((double)Math.round(mean*100)/100)
+					.append(" (").append(Math.round(mean / total * 100)).append("%)");
+			separator = ", ";
 		}
+		builder.append("\n");
 	}
+
+	private static String confidence(Metric m)
+	{
+		if (m.countInclusions() < 2)
+			return "n/a";
+		return "+-"+(double)Math.round(m.getConfidenceHalfWidth(1.96)*100)/100;
+	}
+
 	private int numRuns = 0;
 
 	public void endRun() throws Exception
 	{
-		numRuns ++;
-		if (!faulted)
+		endRun(true);
+	}
+
+	/**
+	 * Ends the current run and resets the allocator
+	 * @param include True to include the run in all recorded metrics.
+	 * False to discard it, e.g. during warm-up
+	 * @throws Exception 
+	 */
+	public void endRun(boolean include) throws Exception
+	{
+		if (include)
+			numRuns ++;
+		if (occupiedSeries != null)
+		{
+			TimeSeries[] run = {occupiedSeries, internalSeries, externalSeries, liveChunkSeries};
+			for (int i = 0; i < run.length; i++)
+			{
+				if (include)
+					recordedSeries[i].include(run[i]);
+				run[i].clear();
+			}
+		}
+		operationIndex = 0;
+		thisRun.gcCollections.include(collections);
+		collections = 0;
+		thisRun.releasedPages.include(pages.countReleasedPages());
+		thisRun.refaultedPages.include(pages.countRefaultedPages());
+		pages.clear();
+		if (cache != null)
+		{
+			for (int l = 0; l < cache.countLevels(); l++)
+				if (cache.getAccesses(l) > 0)
+					thisRun.cacheMissRate[l].include((double)cache.getMisses(l) / cache.getAccesses(l));
+			cache.reset();
+		}
+		if (include && faulted)
+		{
+			faultedAtByteCount.include(faultedAtBytes);
+			faultedAtAllocation.include(faultedAtChunks);
+			faultMessages.add(faultedMessage);
+		}
+		if (include && !faulted)
+		{
+			wallClockPerRun.include(runNanos / 1e6);
 			allTime.include(thisRun);
+			runMeans.includeMeans(thisRun);
+			for (Map.Entry<String, Metric> e : runDetails.entrySet())
+			{
+				Metric m = allTimeDetails.get(e.getKey());
+				if (m == null)
+					allTimeDetails.put(e.getKey(), m = new Metric(e.getValue().isPercentage()));
+				m.include(e.getValue());
+			}
+		}
 		thisRun = new MetricSet();
+		runDetails.clear();
+		runNanos = 0;
 
 		currentlyAllocatedBytes = 0;
+		paddingBytes = 0;
 		faulted = false;
 		allocatedList.clear();
 		Class old = allocator.getClass();
 		String oldName = allocator.toString();
 		allocator = allocator.createNew();
+		allocator.setRelocationListener(this::relocated);
+		allocator.setCollectionListener(this::collected);
+		allocator.setPageMap(pages);
 		if (!old.equals(allocator.getClass()))
 			throw new Exception("Clone is not equal to original: "+old+" != "+allocator.getClass());
 		if (!oldName.equals(allocator.toString()))
@@ -284,9 +956,113 @@ public class AllocatorStateTracker
 			throw new Exception("Clone has occupied space: "+allocator+": "+allocator.getOccupiedMemoryBytes()); 
 	}
 
+	/**
+	 * Retrieves the number of completed runs
+	 * @return Run count
+	 */
+	public int getNumRuns()
+	{
+		return numRuns;
+	}
+
+	/**
+	 * Retrieves the number of runs in which the allocator faulted
+	 * @return Fault count
+	 */
+	public int getNumFaultedRuns()
+	{
+		return faultedAtByteCount.countInclusions();
+	}
+
 	public String getAllocatorName()
 	{
 		return allocator.toString();
 	}
 
+	/**
+	 * Includes all metrics accumulated by another tracker of the same
+	 * allocator, e.g. one that executed its runs in a different process.
+	 * Must be called between runs
+	 * @param other Tracker to include
+	 */
+	public void include(AllocatorStateTracker other)
+	{
+		if (!other.getAllocatorName().equals(getAllocatorName()))
+			throw new IllegalArgumentException("Expected state of "+allocator+", found "+other.allocator);
+		numRuns += other.numRuns;
+		allTime.include(other.allTime);
+		runMeans.include(other.runMeans);
+		faultedAtByteCount.include(other.faultedAtByteCount);
+		faultedAtAllocation.include(other.faultedAtAllocation);
+		faultMessages.addAll(other.faultMessages);
+		for (Map.Entry<String, Metric> e : other.allTimeDetails.entrySet())
+		{
+			Metric m = allTimeDetails.get(e.getKey());
+			if (m == null)
+				allTimeDetails.put(e.getKey(), m = new Metric(e.getValue().isPercentage()));
+			m.include(e.getValue());
+		}
+		wallClockPerRun.include(other.wallClockPerRun);
+	}
+
+	/**
+	 * Writes all metrics accumulated over completed runs.
+	 * Must be called between runs
+	 * @param out Output to write to
+	 * @throws IOException 
+	 */
+	public void writeTo(DataOutput out) throws IOException
+	{
+		out.writeUTF(allocator.toString());
+		out.writeInt(numRuns);
+		allTime.writeTo(out);
+		runMeans.writeTo(out);
+		faultedAtByteCount.writeTo(out);
+		faultedAtAllocation.writeTo(out);
+		out.writeInt(faultMessages.size());
+		for (String msg : faultMessages)
+			out.writeUTF(String.valueOf(msg));	//tolerates messages recorded as null
+		out.writeInt(allTimeDetails.size());
+		for (Map.Entry<String, Metric> e : allTimeDetails.entrySet())
+		{
+			out.writeUTF(e.getKey());
+			out.writeBoolean(e.getValue().isPercentage());
+			e.getValue().writeTo(out);
+		}
+		wallClockPerRun.writeTo(out);
+	}
+
+	/**
+	 * Replaces all metrics accumulated over completed runs with the ones
+	 * read from the specified input.
+	 * Must be called between runs
+	 * @param in Input previously written by writeTo()
+	 * @throws IOException if the input was written for a different allocator
+	 */
+	public void readFrom(DataInput in) throws IOException
+	{
+		String name = in.readUTF();
+		if (!name.equals(allocator.toString()))
+			throw new IOException("Expected state of "+allocator+", found "+name);
+		numRuns = in.readInt();
+		allTime.readFrom(in);
+		runMeans.readFrom(in);
+		faultedAtByteCount.readFrom(in);
+		faultedAtAllocation.readFrom(in);
+		faultMessages.clear();
+		int n = in.readInt();
+		for (int i = 0; i < n; i++)
+			faultMessages.add(in.readUTF());
+		allTimeDetails.clear();
+		n = in.readInt();
+		for (int i = 0; i < n; i++)
+		{
+			String key = in.readUTF();
+			Metric m = new Metric(in.readBoolean());
+			m.readFrom(in);
+			allTimeDetails.put(key, m);
+		}
+		wallClockPerRun.readFrom(in);
+	}
+
 }
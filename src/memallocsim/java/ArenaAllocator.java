@@ -0,0 +1,332 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package memallocsim.java;
+
+import java.util.Arrays;
+
+/**
+ * Splits the address space into equally sized, independent arenas.
+ * Each arena manages its own address-ordered free list with first-fit
+ * allocation and immediate coalescing. A routing policy selects the arena
+ * of each request. If the selected arena can not serve a request, the
+ * remaining arenas are tried in order.
+ * @author IronFox
+ */
+public class ArenaAllocator implements Allocator
+{
+	/**
+	 * Arena selection policy
+	 */
+	public enum Routing
+	{
+		/**
+		 * Requests of similar size (same power of two) share an arena
+		 */
+		SIZE_CLASS("size class"),
+		/**
+		 * Requests of the same owner share an arena. The owner is the one
+		 * set via setOwner(), or the calling thread if none was set
+		 */
+		OWNER("owner"),
+		/**
+		 * Requests are distributed across all arenas in turn
+		 */
+		ROUND_ROBIN("round robin");
+
+		private final String name;
+
+		Routing(String name)
+		{
+			this.name = name;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name;
+		}
+	}
+
+	/**
+	 * Requests of at least 2^SIZE_CLASS_LIMIT_LOG2 bytes are routed to the
+	 * last arena by SIZE_CLASS
+	 */
+	public final static int SIZE_CLASS_LIMIT_LOG2 = 16;
+
+	/**
+	 * Free list of a single arena.
+	 * Free blocks are stored in parallel arrays, ordered by offset
+	 */
+	private final static class Arena
+	{
+		final int start, end;
+		int[] offsets = new int[16], sizes = new int[16];
+		int count = 0, occupied = 0;
+
+		Arena(int start, int end)
+		{
+			this.start = start;
+			this.end = end;
+			offsets[0] = start;
+			sizes[0] = end - start;
+			count = 1;
+		}
+
+		int freeBytes()
+		{
+			return end - start - occupied;
+		}
+
+		int largestFreeBlock()
+		{
+			int rs = 0;
+			for (int i = 0; i < count; i++)
+				rs = Math.max(rs, sizes[i]);
+			return rs;
+		}
+
+		private void remove(int index)
+		{
+			System.arraycopy(offsets, index+1, offsets, index, count - index - 1);
+			System.arraycopy(sizes, index+1, sizes, index, count - index - 1);
+			count--;
+		}
+
+		private void insert(int index, int offset, int size)
+		{
+			if (count == offsets.length)
+			{
+				offsets = Arrays.copyOf(offsets, count*2);
+				sizes = Arrays.copyOf(sizes, count*2);
+			}
+			System.arraycopy(offsets, index, offsets, index+1, count - index);
+			System.arraycopy(sizes, index, sizes, index+1, count - index);
+			offsets[index] = offset;
+			sizes[index] = size;
+			count++;
+		}
+
+		MemoryChunk allocate(int numBytes, StepCounter counter)
+		{
+			for (int i = 0; i < count; i++)
+			{
+				counter.inc(StepCategory.SEARCH);
+				counter.touch(offsets[i]);
+				if (sizes[i] < numBytes)
+					continue;
+				MemoryChunk rs = new MemoryChunk(offsets[i], numBytes);
+				if (sizes[i] == numBytes)
+				{
+					counter.inc(StepCategory.METADATA);
+					remove(i);
+				}
+				else
+				{
+					counter.inc(StepCategory.SPLIT);
+					offsets[i] += numBytes;
+					sizes[i] -= numBytes;
+				}
+				occupied += numBytes;
+				return rs;
+			}
+			return null;
+		}
+
+		void free(MemoryChunk chunk, StepCounter counter)
+		{
+			//binary search for the first free block behind the chunk
+			int lower = 0, upper = count;
+			while (lower < upper)
+			{
+				counter.inc(StepCategory.SEARCH);
+				int mid = (lower + upper) >>> 1;
+				counter.touch(offsets[mid]);
+				if (offsets[mid] < chunk.byteOffset)
+					lower = mid+1;
+				else
+					upper = mid;
+			}
+			int next = lower, prev = lower-1;
+			if ((prev >= 0 && offsets[prev] + sizes[prev] > chunk.byteOffset)
+				|| (next < count && offsets[next] < chunk.getEnd()))
+				throw new IllegalArgumentException("Chunk "+chunk+" overlaps free memory");
+			boolean mergePrev = prev >= 0 && offsets[prev] + sizes[prev] == chunk.byteOffset;
+			boolean mergeNext = next < count && offsets[next] == chunk.getEnd();
+			if (mergePrev && mergeNext)
+			{
+				counter.add(StepCategory.COALESCE, 2);
+				sizes[prev] += chunk.byteSize + sizes[next];
+				remove(next);
+			}
+			else if (mergePrev)
+			{
+				counter.inc(StepCategory.COALESCE);
+				sizes[prev] += chunk.byteSize;
+			}
+			else if (mergeNext)
+			{
+				counter.inc(StepCategory.COALESCE);
+				offsets[next] = chunk.byteOffset;
+				sizes[next] += chunk.byteSize;
+			}
+			else
+			{
+				counter.inc(StepCategory.METADATA);
+				insert(next, chunk.byteOffset, chunk.byteSize);
+			}
+			occupied -= chunk.byteSize;
+		}
+	}
+
+	private final Routing routing;
+	private final Arena[] arenas;
+	private final int arenaSize;
+	private final String[] fillNames, fragmentationNames;
+	private int nextArena = 0;
+	/**
+	 * Simulated owner of the current requests, -1 to use the calling thread
+	 */
+	private int owner = -1;
+
+	/**
+	 * Creates a new allocator
+	 * @param numArenas Number of arenas. MEMORY_SIZE must be divisible by
+	 * this number
+	 * @param routing Arena selection policy
+	 */
+	public ArenaAllocator(int numArenas, Routing routing)
+	{
+		if (numArenas <= 0 || MEMORY_SIZE % numArenas != 0)
+			throw new IllegalArgumentException("Arena count must be a positive divisor of "+MEMORY_SIZE+": "+numArenas);
+		this.routing = routing;
+		arenaSize = MEMORY_SIZE / numArenas;
+		arenas = new Arena[numArenas];
+		fillNames = new String[numArenas];
+		fragmentationNames = new String[numArenas];
+		for (int i = 0; i < numArenas; i++)
+		{
+			arenas[i] = new Arena(i * arenaSize, (i+1) * arenaSize);
+			fillNames[i] = "arena "+i+" fill";
+			fragmentationNames[i] = "arena "+i+" fragmentation";
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Arena("+arenas.length+"x, "+routing+")";
+	}
+
+	/**
+	 * Selects the preferred arena of a request
+	 */
+	private int route(int numBytes)
+	{
+		switch (routing)
+		{
+			case SIZE_CLASS:
+				int log2 = 31 - Integer.numberOfLeadingZeros(numBytes);
+				return Math.min(arenas.length - 1, log2 * arenas.length / (SIZE_CLASS_LIMIT_LOG2 + 1));
+			case OWNER:
+				if (owner >= 0)
+					return owner % arenas.length;
+				return (int)(Thread.currentThread().getId() % arenas.length);
+			default:
+				int rs = nextArena;
+				nextArena = (nextArena + 1) % arenas.length;
+				return rs;
+		}
+	}
+
+	@Override
+	public void setOwner(int owner)
+	{
+		this.owner = owner;
+	}
+
+	@Override
+	public MemoryChunk allocate(int numBytes, StepCounter counter)
+	{
+		if (numBytes <= 0)
+			return null;
+		int first = route(numBytes);
+		for (int i = 0; i < arenas.length; i++)
+		{
+			MemoryChunk rs = arenas[(first + i) % arenas.length].allocate(numBytes, counter);
+			if (rs != null)
+				return rs;
+		}
+		return null;
+	}
+
+	@Override
+	public void free(MemoryChunk chunk, StepCounter counter)
+	{
+		if (chunk == null)
+			return;
+		Arena a = arenas[chunk.byteOffset / arenaSize];
+		if (chunk.getEnd() > a.end)
+			throw new IllegalArgumentException(this+": chunk "+chunk+" spans multiple arenas");
+		a.free(chunk, counter);
+	}
+
+	@Override
+	public int getInternalFragmentationBytes()
+	{
+		return 0;
+	}
+
+	@Override
+	public int getExternalFragmentationBytes(int allocRequestBytes)
+	{
+		int rs = 0;
+		for (Arena a : arenas)
+			for (int i = 0; i < a.count; i++)
+				if (a.sizes[i] < allocRequestBytes)
+					rs += a.sizes[i];
+		return rs;
+	}
+
+	@Override
+	public void fillFreeBlockHistogram(FreeBlockHistogram histogram)
+	{
+		histogram.clear();
+		for (Arena a : arenas)
+			for (int i = 0; i < a.count; i++)
+				histogram.include(a.sizes[i]);
+	}
+
+	/**
+	 * Reports the fill level of each arena, and its fragmentation as the
+	 * share of free bytes outside the arena's largest free block
+	 */
+	@Override
+	public void sampleDetails(DetailSink sink)
+	{
+		for (int i = 0; i < arenas.length; i++)
+		{
+			Arena a = arenas[i];
+			sink.sample(fillNames[i], (double)a.occupied / arenaSize, true);
+			int free = a.freeBytes();
+			sink.sample(fragmentationNames[i], free > 0 ? 1.0 - (double)a.largestFreeBlock() / free : 0, true);
+		}
+	}
+
+	@Override
+	public int getOccupiedMemoryBytes()
+	{
+		int rs = 0;
+		for (Arena a : arenas)
+			rs += a.occupied;
+		return rs;
+	}
+
+	@Override
+	public Allocator createNew()
+	{
+		return new ArenaAllocator(arenas.length, routing);
+	}
+}
@@ -0,0 +1,606 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package memallocsim.java;
+
+import java.util.Arrays;
+
+/**
+ * Best-fit allocator with immediate coalescing.
+ * Each free block is a node of two treaps stored in parallel int arrays:
+ * one ordered by (size, offset) and augmented with the largest block size
+ * of each subtree, one ordered by offset. The size treap finds the
+ * smallest sufficient block in O(log n) expected steps, the offset treap
+ * finds the neighbors of a freed chunk for coalescing in O(log n)
+ * expected steps.
+ * @author IronFox
+ */
+public class BestFitAllocator implements Allocator
+{
+	private final static int NIL = -1;
+
+	/**
+	 * Free block of each node
+	 */
+	private int[] offset = new int[16], size = new int[16];
+	/**
+	 * Heap priority of each node, shared by both treaps
+	 */
+	private int[] priority = new int[16];
+	/**
+	 * Children in the size treap, and the largest block size of the
+	 * subtree rooted at each node
+	 */
+	private int[] sizeLeft = new int[16], sizeRight = new int[16], maxSize = new int[16];
+	/**
+	 * Children in the offset treap. Released nodes are chained through
+	 * offsetLeft
+	 */
+	private int[] offsetLeft = new int[16], offsetRight = new int[16];
+	private int sizeRoot = NIL, offsetRoot = NIL;
+	private int numNodes = 0, releasedNodes = NIL;
+	private int occupied = 0;
+	/**
+	 * Chunks of the current freeBatch() call, ordered by offset
+	 */
+	private MemoryChunk[] sorted = new MemoryChunk[16];
+	/**
+	 * Xorshift state for node priorities. Fixed, so that runs are
+	 * reproducible
+	 */
+	private int random = 0x2545F491;
+
+	public BestFitAllocator()
+	{
+		int n = createNode(0, MEMORY_SIZE);
+		sizeRoot = n;
+		offsetRoot = n;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "BestFit";
+	}
+
+	private int nextPriority()
+	{
+		random ^= random << 13;
+		random ^= random >>> 17;
+		random ^= random << 5;
+		return random;
+	}
+
+	private int createNode(int blockOffset, int blockSize)
+	{
+		int n;
+		if (releasedNodes != NIL)
+		{
+			n = releasedNodes;
+			releasedNodes = offsetLeft[n];
+		}
+		else
+		{
+			if (numNodes == offset.length)
+			{
+				int capacity = numNodes * 2;
+				offset = Arrays.copyOf(offset, capacity);
+				size = Arrays.copyOf(size, capacity);
+				priority = Arrays.copyOf(priority, capacity);
+				sizeLeft = Arrays.copyOf(sizeLeft, capacity);
+				sizeRight = Arrays.copyOf(sizeRight, capacity);
+				maxSize = Arrays.copyOf(maxSize, capacity);
+				offsetLeft = Arrays.copyOf(offsetLeft, capacity);
+				offsetRight = Arrays.copyOf(offsetRight, capacity);
+			}
+			n = numNodes++;
+		}
+		offset[n] = blockOffset;
+		size[n] = blockSize;
+		priority[n] = nextPriority();
+		sizeLeft[n] = sizeRight[n] = offsetLeft[n] = offsetRight[n] = NIL;
+		maxSize[n] = blockSize;
+		return n;
+	}
+
+	private void releaseNode(int n)
+	{
+		offsetLeft[n] = releasedNodes;
+		releasedNodes = n;
+	}
+
+	//--- size treap ---
+
+	private void updateMax(int t)
+	{
+		int m = size[t];
+		if (sizeLeft[t] != NIL)
+			m = Math.max(m, maxSize[sizeLeft[t]]);
+		if (sizeRight[t] != NIL)
+			m = Math.max(m, maxSize[sizeRight[t]]);
+		maxSize[t] = m;
+	}
+
+	/**
+	 * Orders nodes by size, then by offset
+	 */
+	private boolean sizeLess(int a, int b)
+	{
+		return size[a] < size[b] || (size[a] == size[b] && offset[a] < offset[b]);
+	}
+
+	private int sizeInsert(int t, int n, StepCounter counter)
+	{
+		counter.inc(StepCategory.METADATA);
+		if (t == NIL)
+			return n;
+		if (priority[n] > priority[t])
+		{
+			sizeSplit(t, n, counter);
+			updateMax(n);
+			return n;
+		}
+		if (sizeLess(n, t))
+			sizeLeft[t] = sizeInsert(sizeLeft[t], n, counter);
+		else
+			sizeRight[t] = sizeInsert(sizeRight[t], n, counter);
+		updateMax(t);
+		return t;
+	}
+
+	/**
+	 * Splits the subtree t into nodes ordered before and after n, and
+	 * attaches them as children of n
+	 */
+	private void sizeSplit(int t, int n, StepCounter counter)
+	{
+		int left = NIL, right = NIL;
+		int leftTail = NIL, rightTail = NIL;	//attachment points
+		while (t != NIL)
+		{
+			counter.inc(StepCategory.METADATA);
+			if (sizeLess(t, n))
+			{
+				if (leftTail == NIL)
+					left = t;
+				else
+					sizeRight[leftTail] = t;
+				leftTail = t;
+				t = sizeRight[t];
+			}
+			else
+			{
+				if (rightTail == NIL)
+					right = t;
+				else
+					sizeLeft[rightTail] = t;
+				rightTail = t;
+				t = sizeLeft[t];
+			}
+		}
+		if (leftTail != NIL)
+			sizeRight[leftTail] = NIL;
+		if (rightTail != NIL)
+			sizeLeft[rightTail] = NIL;
+		sizeLeft[n] = left;
+		sizeRight[n] = right;
+		//the split paths changed, so their maxima must be recomputed bottom-up
+		fixMaxAlongRightSpine(left);
+		fixMaxAlongLeftSpine(right);
+	}
+
+	private void fixMaxAlongRightSpine(int t)
+	{
+		if (t == NIL)
+			return;
+		fixMaxAlongRightSpine(sizeRight[t]);
+		updateMax(t);
+	}
+
+	private void fixMaxAlongLeftSpine(int t)
+	{
+		if (t == NIL)
+			return;
+		fixMaxAlongLeftSpine(sizeLeft[t]);
+		updateMax(t);
+	}
+
+	private int sizeMerge(int a, int b, StepCounter counter)
+	{
+		if (a == NIL)
+			return b;
+		if (b == NIL)
+			return a;
+		counter.inc(StepCategory.METADATA);
+		if (priority[a] > priority[b])
+		{
+			sizeRight[a] = sizeMerge(sizeRight[a], b, counter);
+			updateMax(a);
+			return a;
+		}
+		sizeLeft[b] = sizeMerge(a, sizeLeft[b], counter);
+		updateMax(b);
+		return b;
+	}
+
+	private int sizeRemove(int t, int n, StepCounter counter)
+	{
+		counter.inc(StepCategory.METADATA);
+		if (t == n)
+			return sizeMerge(sizeLeft[t], sizeRight[t], counter);
+		if (sizeLess(n, t))
+			sizeLeft[t] = sizeRemove(sizeLeft[t], n, counter);
+		else
+			sizeRight[t] = sizeRemove(sizeRight[t], n, counter);
+		updateMax(t);
+		return t;
+	}
+
+	/**
+	 * Finds the smallest free block of at least the requested size.
+	 * Among equally sized blocks, the lowest offset wins
+	 * @return Node or NIL
+	 */
+	private int findBestFit(int numBytes, StepCounter counter)
+	{
+		int best = NIL;
+		int t = sizeRoot;
+		while (t != NIL && maxSize[t] >= numBytes)
+		{
+			counter.inc(StepCategory.SEARCH);
+			counter.touch(offset[t]);
+			if (size[t] >= numBytes)
+			{
+				best = t;
+				t = sizeLeft[t];
+			}
+			else
+				t = sizeRight[t];
+		}
+		return best;
+	}
+
+	//--- offset treap ---
+
+	private int offsetInsert(int t, int n, StepCounter counter)
+	{
+		counter.inc(StepCategory.METADATA);
+		if (t == NIL)
+			return n;
+		if (priority[n] > priority[t])
+		{
+			int left = NIL, right = NIL;
+			int leftTail = NIL, rightTail = NIL;
+			while (t != NIL)
+			{
+				counter.inc(StepCategory.METADATA);
+				if (offset[t] < offset[n])
+				{
+					if (leftTail == NIL)
+						left = t;
+					else
+						offsetRight[leftTail] = t;
+					leftTail = t;
+					t = offsetRight[t];
+				}
+				else
+				{
+					if (rightTail == NIL)
+						right = t;
+					else
+						offsetLeft[rightTail] = t;
+					rightTail = t;
+					t = offsetLeft[t];
+				}
+			}
+			if (leftTail != NIL)
+				offsetRight[leftTail] = NIL;
+			if (rightTail != NIL)
+				offsetLeft[rightTail] = NIL;
+			offsetLeft[n] = left;
+			offsetRight[n] = right;
+			return n;
+		}
+		if (offset[n] < offset[t])
+			offsetLeft[t] = offsetInsert(offsetLeft[t], n, counter);
+		else
+			offsetRight[t] = offsetInsert(offsetRight[t], n, counter);
+		return t;
+	}
+
+	private int offsetMerge(int a, int b, StepCounter counter)
+	{
+		if (a == NIL)
+			return b;
+		if (b == NIL)
+			return a;
+		counter.inc(StepCategory.METADATA);
+		if (priority[a] > priority[b])
+		{
+			offsetRight[a] = offsetMerge(offsetRight[a], b, counter);
+			return a;
+		}
+		offsetLeft[b] = offsetMerge(a, offsetLeft[b], counter);
+		return b;
+	}
+
+	private int offsetRemove(int t, int n, StepCounter counter)
+	{
+		counter.inc(StepCategory.METADATA);
+		if (t == n)
+			return offsetMerge(offsetLeft[t], offsetRight[t], counter);
+		if (offset[n] < offset[t])
+			offsetLeft[t] = offsetRemove(offsetLeft[t], n, counter);
+		else
+			offsetRight[t] = offsetRemove(offsetRight[t], n, counter);
+		return t;
+	}
+
+	/**
+	 * Finds the free block with the greatest offset less than the
+	 * specified one
+	 * @return Node or NIL
+	 */
+	private int findPredecessor(int byteOffset, StepCounter counter)
+	{
+		int rs = NIL;
+		for (int t = offsetRoot; t != NIL; )
+		{
+			counter.inc(StepCategory.SEARCH);
+			counter.touch(offset[t]);
+			if (offset[t] < byteOffset)
+			{
+				rs = t;
+				t = offsetRight[t];
+			}
+			else
+				t = offsetLeft[t];
+		}
+		return rs;
+	}
+
+	/**
+	 * Finds the free block with the least offset greater or equal to the
+	 * specified one
+	 * @return Node or NIL
+	 */
+	private int findSuccessor(int byteOffset, StepCounter counter)
+	{
+		int rs = NIL;
+		for (int t = offsetRoot; t != NIL; )
+		{
+			counter.inc(StepCategory.SEARCH);
+			counter.touch(offset[t]);
+			if (offset[t] >= byteOffset)
+			{
+				rs = t;
+				t = offsetLeft[t];
+			}
+			else
+				t = offsetRight[t];
+		}
+		return rs;
+	}
+
+	//--- allocator ---
+
+	@Override
+	public MemoryChunk allocate(int numBytes, StepCounter counter)
+	{
+		if (numBytes <= 0)
+			return null;
+		int n = findBestFit(numBytes, counter);
+		if (n == NIL)
+			return null;
+		MemoryChunk rs = new MemoryChunk(offset[n], numBytes);
+		sizeRoot = sizeRemove(sizeRoot, n, counter);
+		if (size[n] == numBytes)
+		{
+			offsetRoot = offsetRemove(offsetRoot, n, counter);
+			releaseNode(n);
+		}
+		else
+		{
+			//the remainder stays in place, so its offset order is unchanged
+			counter.inc(StepCategory.SPLIT);
+			offset[n] += numBytes;
+			size[n] -= numBytes;
+			maxSize[n] = size[n];
+			sizeLeft[n] = sizeRight[n] = NIL;
+			sizeRoot = sizeInsert(sizeRoot, n, counter);
+		}
+		occupied += numBytes;
+		return rs;
+	}
+
+	@Override
+	public void free(MemoryChunk chunk, StepCounter counter)
+	{
+		if (chunk == null)
+			return;
+		freeRange(chunk.byteOffset, chunk.getEnd(), counter);
+	}
+
+	/**
+	 * Returns an allocated range to the free blocks, coalescing it with
+	 * its free neighbors
+	 */
+	private void freeRange(int start, int end, StepCounter counter)
+	{
+		int prev = findPredecessor(start, counter);
+		int next = findSuccessor(start, counter);
+		if ((prev != NIL && offset[prev] + size[prev] > start)
+			|| (next != NIL && offset[next] < end))
+			throw new IllegalArgumentException(this+": chunk ["+start+","+end+") overlaps free memory");
+		boolean mergePrev = prev != NIL && offset[prev] + size[prev] == start;
+		boolean mergeNext = next != NIL && offset[next] == end;
+		int n;
+		if (mergePrev && mergeNext)
+		{
+			counter.add(StepCategory.COALESCE, 2);
+			sizeRoot = sizeRemove(sizeRoot, prev, counter);
+			sizeRoot = sizeRemove(sizeRoot, next, counter);
+			offsetRoot = offsetRemove(offsetRoot, next, counter);
+			size[prev] += end - start + size[next];
+			releaseNode(next);
+			n = prev;
+		}
+		else if (mergePrev)
+		{
+			counter.inc(StepCategory.COALESCE);
+			sizeRoot = sizeRemove(sizeRoot, prev, counter);
+			size[prev] += end - start;
+			n = prev;
+		}
+		else if (mergeNext)
+		{
+			counter.inc(StepCategory.COALESCE);
+			sizeRoot = sizeRemove(sizeRoot, next, counter);
+			offset[next] = start;
+			size[next] += end - start;
+			n = next;
+		}
+		else
+		{
+			n = createNode(start, end - start);
+			offsetRoot = offsetInsert(offsetRoot, n, counter);
+		}
+		maxSize[n] = size[n];
+		sizeLeft[n] = sizeRight[n] = NIL;
+		sizeRoot = sizeInsert(sizeRoot, n, counter);
+		occupied -= end - start;
+	}
+
+	/**
+	 * Sorts the batch by offset and returns each run of adjacent chunks as
+	 * a single range, so that chunks freed together coalesce with each
+	 * other without any treap operation
+	 */
+	@Override
+	public void freeBatch(MemoryChunk[] chunks, int count, StepCounter counter)
+	{
+		if (sorted.length < count)
+			sorted = new MemoryChunk[Math.max(count, sorted.length*2)];
+		int n = 0;
+		for (int i = 0; i < count; i++)
+		{
+			MemoryChunk c = chunks[i];
+			if (c == null)
+				continue;
+			//insertion sort, batches are small
+			int j = n++;
+			for (; j > 0 && sorted[j-1].byteOffset > c.byteOffset; j--)
+			{
+				counter.inc(StepCategory.SEARCH);
+				sorted[j] = sorted[j-1];
+			}
+			sorted[j] = c;
+		}
+		try
+		{
+			for (int i = 0; i < n; )
+			{
+				int start = sorted[i].byteOffset, end = sorted[i].getEnd();
+				for (i++; i < n && sorted[i].byteOffset <= end; i++)
+				{
+					if (sorted[i].byteOffset < end)
+						throw new IllegalArgumentException(this+": chunks "+sorted[i-1]+" and "+sorted[i]+" overlap");
+					counter.inc(StepCategory.COALESCE);
+					end = sorted[i].getEnd();
+				}
+				freeRange(start, end, counter);
+			}
+		}
+		finally
+		{
+			Arrays.fill(sorted, 0, n, null);
+		}
+	}
+
+	@Override
+	public boolean amortizesFrees()
+	{
+		return true;
+	}
+
+	@Override
+	public int getInternalFragmentationBytes()
+	{
+		return 0;
+	}
+
+	/**
+	 * Sums the sizes of all free blocks smaller than the specified size.
+	 * Visits only the part of the size treap below that size
+	 */
+	private int sumSmaller(int t, int numBytes)
+	{
+		int rs = 0;
+		while (t != NIL)
+		{
+			if (size[t] < numBytes)
+			{
+				rs += size[t] + sumAll(sizeLeft[t]);
+				t = sizeRight[t];
+			}
+			else
+				t = sizeLeft[t];
+		}
+		return rs;
+	}
+
+	private int sumAll(int t)
+	{
+		if (t == NIL)
+			return 0;
+		return size[t] + sumAll(sizeLeft[t]) + sumAll(sizeRight[t]);
+	}
+
+	@Override
+	public int getExternalFragmentationBytes(int allocRequestBytes)
+	{
+		return sumSmaller(sizeRoot, allocRequestBytes);
+	}
+
+	private void fill(int t, FreeBlockHistogram histogram)
+	{
+		if (t == NIL)
+			return;
+		fill(sizeLeft[t], histogram);
+		histogram.include(size[t]);
+		fill(sizeRight[t], histogram);
+	}
+
+	@Override
+	public void fillFreeBlockHistogram(FreeBlockHistogram histogram)
+	{
+		histogram.clear();
+		fill(sizeRoot, histogram);
+	}
+
+	/**
+	 * Reports the share of free bytes outside the largest free block,
+	 * which the augmented size treap provides in constant time
+	 */
+	@Override
+	public void sampleDetails(DetailSink sink)
+	{
+		int free = MEMORY_SIZE - occupied;
+		int largest = sizeRoot != NIL ? maxSize[sizeRoot] : 0;
+		sink.sample("fragmentation", free > 0 ? 1.0 - (double)largest / free : 0, true);
+	}
+
+	@Override
+	public int getOccupiedMemoryBytes()
+	{
+		return occupied;
+	}
+
+	@Override
+	public Allocator createNew()
+	{
+		return new BestFitAllocator();
+	}
+}
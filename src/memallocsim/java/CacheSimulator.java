@@ -0,0 +1,187 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package memallocsim.java;
+
+/**
+ * Multi-level set-associative CPU cache model with LRU replacement.
+ * Each level is looked up in order. A miss on a level inserts the line
+ * into that level and continues with the next one. All state is held in
+ * primitive arrays, so accesses do not create objects.
+ * @author IronFox
+ */
+public class CacheSimulator
+{
+	/**
+	 * Maximum number of supported cache levels
+	 */
+	public final static int MAX_LEVELS = 3;
+
+	private final int lineBytes, lineShift;
+	private final int[] levelBytes, levelWays, setMask;
+	/**
+	 * Line index held by each way, per level, indexed by set*ways+way.
+	 * -1 if empty
+	 */
+	private final int[][] tags;
+	/**
+	 * Time of last access of each way, per level
+	 */
+	private final long[][] lastUsed;
+	private final long[] accesses, misses;
+	private long clock = 0;
+
+	/**
+	 * Creates a new cache hierarchy
+	 * @param lineBytes Size of a cache line in bytes. Must be a power of two
+	 * @param levelBytes Capacity of each level in bytes, starting with L1
+	 * @param levelWays Associativity of each level
+	 */
+	public CacheSimulator(int lineBytes, int[] levelBytes, int[] levelWays)
+	{
+		if (Integer.bitCount(lineBytes) != 1)
+			throw new IllegalArgumentException("Line size must be a power of two: "+lineBytes);
+		if (levelBytes.length != levelWays.length || levelBytes.length == 0 || levelBytes.length > MAX_LEVELS)
+			throw new IllegalArgumentException("Expected 1 to "+MAX_LEVELS+" levels, with one associativity per level");
+		this.lineBytes = lineBytes;
+		this.lineShift = Integer.numberOfTrailingZeros(lineBytes);
+		this.levelBytes = levelBytes.clone();
+		this.levelWays = levelWays.clone();
+		int n = levelBytes.length;
+		setMask = new int[n];
+		tags = new int[n][];
+		lastUsed = new long[n][];
+		accesses = new long[n];
+		misses = new long[n];
+		for (int l = 0; l < n; l++)
+		{
+			int sets = levelBytes[l] / lineBytes / levelWays[l];
+			if (sets <= 0 || Integer.bitCount(sets) != 1)
+				throw new IllegalArgumentException("Level "+(l+1)+": number of sets must be a positive power of two: "+sets);
+			setMask[l] = sets - 1;
+			tags[l] = new int[sets * levelWays[l]];
+			lastUsed[l] = new long[sets * levelWays[l]];
+		}
+		reset();
+	}
+
+	/**
+	 * Creates an empty cache hierarchy of the same configuration
+	 * @return New instance
+	 */
+	public CacheSimulator createNew()
+	{
+		return new CacheSimulator(lineBytes, levelBytes, levelWays);
+	}
+
+	/**
+	 * Invalidates all lines and resets all counters
+	 */
+	public final void reset()
+	{
+		for (int l = 0; l < tags.length; l++)
+		{
+			for (int i = 0; i < tags[l].length; i++)
+			{
+				tags[l][i] = -1;
+				lastUsed[l][i] = 0;
+			}
+			accesses[l] = 0;
+			misses[l] = 0;
+		}
+		clock = 0;
+	}
+
+	/**
+	 * Accesses the line containing a specific address
+	 * @param address Byte address
+	 */
+	public void access(int address)
+	{
+		accessLine(address >>> lineShift);
+	}
+
+	/**
+	 * Accesses all lines overlapping a byte range
+	 * @param offset First byte of the range
+	 * @param numBytes Length of the range in bytes
+	 */
+	public void accessRange(int offset, int numBytes)
+	{
+		if (numBytes <= 0)
+			return;
+		int last = (offset + numBytes - 1) >>> lineShift;
+		for (int line = offset >>> lineShift; line <= last; line++)
+			accessLine(line);
+	}
+
+	private void accessLine(int line)
+	{
+		clock++;
+		for (int l = 0; l < tags.length; l++)
+		{
+			accesses[l]++;
+			int ways = levelWays[l];
+			int base = (line & setMask[l]) * ways;
+			int[] t = tags[l];
+			long[] used = lastUsed[l];
+			int victim = base;
+			for (int i = base; i < base + ways; i++)
+			{
+				if (t[i] == line)
+				{
+					used[i] = clock;
+					return;
+				}
+				if (used[i] < used[victim])
+					victim = i;
+			}
+			misses[l]++;
+			t[victim] = line;
+			used[victim] = clock;
+		}
+	}
+
+	/**
+	 * Retrieves the number of cache levels
+	 * @return Level count
+	 */
+	public int countLevels()
+	{
+		return tags.length;
+	}
+
+	/**
+	 * Retrieves the number of accesses that reached a specific level
+	 * @param level Level index, 0 for L1
+	 * @return Access count
+	 */
+	public long getAccesses(int level)
+	{
+		return accesses[level];
+	}
+
+	/**
+	 * Retrieves the number of misses on a specific level
+	 * @param level Level index, 0 for L1
+	 * @return Miss count
+	 */
+	public long getMisses(int level)
+	{
+		return misses[level];
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder builder = new StringBuilder();
+		builder.append(lineBytes).append("B lines");
+		for (int l = 0; l < levelBytes.length; l++)
+			builder.append(", L").append(l+1).append(" ")
+					.append(levelBytes[l] / 1024).append("KiB ")
+					.append(levelWays[l]).append("-way");
+		return builder.toString();
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package memallocsim.java;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Snapshot of a simulation between two runs.
+ * Stores the base random seed, the number of completed runs, and all
+ * accumulated metrics, so that an interrupted simulation can be continued
+ * with the same workloads it would have seen without interruption.
+ * @author IronFox
+ */
+public final class Checkpoint
+{
+	private final static int MAGIC = 0x4D415343;	//"MASC"
+	private final static int VERSION = 4;
+
+	/**
+	 * Base random seed of the simulation
+	 */
+	public final long seed;
+	/**
+	 * Number of runs completed when the checkpoint was written
+	 */
+	public final int completedRuns;
+
+	private Checkpoint(long seed, int completedRuns)
+	{
+		this.seed = seed;
+		this.completedRuns = completedRuns;
+	}
+
+	/**
+	 * Writes a checkpoint.
+	 * The checkpoint is written to a temporary file first, which then
+	 * replaces the target file, so an interrupted write never corrupts
+	 * an existing checkpoint
+	 * @param file Checkpoint file
+	 * @param seed Base random seed of the simulation
+	 * @param completedRuns Number of completed runs
+	 * @param state State to store. Must be between runs
+	 * @throws IOException 
+	 */
+	public static void write(Path file, long seed, int completedRuns, SimulationState state) throws IOException
+	{
+		Path dir = file.toAbsolutePath().getParent();
+		Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+		try
+		{
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp))))
+			{
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(seed);
+				out.writeInt(completedRuns);
+				state.writeTo(out);
+			}
+			Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		finally
+		{
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	/**
+	 * Reads a checkpoint, restoring the stored metrics into a state
+	 * @param file Checkpoint file
+	 * @param state State to restore. Must have been created with the same
+	 * allocators as the stored one, and be between runs
+	 * @return Seed and run count stored in the checkpoint
+	 * @throws IOException if the file is not a compatible checkpoint
+	 */
+	public static Checkpoint read(Path file, SimulationState state) throws IOException
+	{
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file))))
+		{
+			if (in.readInt() != MAGIC)
+				throw new IOException(file+" is not a checkpoint");
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IOException(file+": unsupported checkpoint version "+version);
+			Checkpoint rs = new Checkpoint(in.readLong(), in.readInt());
+			state.readFrom(in);
+			return rs;
+		}
+	}
+}
@@ -0,0 +1,342 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package memallocsim.java;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Simulates many concurrent clients sharing one synchronized allocator.
+ * Each client issues a sequence of requests. A request allocates a few
+ * chunks, holds them for a random lifetime, and frees them, while the
+ * client already thinks about its next request.
+ * Clients are not bound to threads: their steps are scheduled as tasks on
+ * a small pool of worker threads, so thousands of clients can be
+ * simulated at once.
+ * @author IronFox
+ */
+public class ClientDriver
+{
+	/**
+	 * Range of chunk sizes requested by clients
+	 */
+	public final static int MIN_CHUNK_BYTES = 16, MAX_CHUNK_BYTES = 256;
+	/**
+	 * Maximum number of chunks allocated per request
+	 */
+	public final static int MAX_CHUNKS_PER_REQUEST = 4;
+	/**
+	 * Mean time chunks are held (exponentially distributed)
+	 */
+	public final static double MEAN_LIFETIME_MICROS = 500;
+	/**
+	 * Mean time between two requests of the same client (exponentially
+	 * distributed)
+	 */
+	public final static double MEAN_THINK_MICROS = 200;
+
+	/**
+	 * Outcome of a single driver run
+	 */
+	public static class Result
+	{
+		public final String allocatorName;
+		public final int clients;
+		public final long requests, allocations, failedAllocations, frees;
+		public final long wallNanos;
+		/**
+		 * Lock statistics of the shared allocator
+		 */
+		public final long lockAcquisitions, lockContended, lockWaitNanos;
+		/**
+		 * Latency of individual allocate or free calls in microseconds,
+		 * including lock wait
+		 */
+		public final Metric operationLatency;
+		/**
+		 * Mean operation latency of each client in microseconds
+		 */
+		public final Metric clientLatency;
+		public final double clientLatencyMedian, clientLatencyP99;
+		/**
+		 * First exception thrown by the allocator, or null
+		 */
+		public final String fault;
+
+		Result(ClientDriver driver, SynchronizedAllocator allocator, Client[] clients, long wallNanos, String fault)
+		{
+			allocatorName = allocator.toString();
+			this.clients = clients.length;
+			requests = (long)clients.length * driver.requestsPerClient;
+			this.wallNanos = wallNanos;
+			this.fault = fault;
+			lockAcquisitions = allocator.getAcquisitions();
+			lockContended = allocator.getContended();
+			lockWaitNanos = allocator.getWaitNanos();
+			operationLatency = new Metric(false);
+			clientLatency = new Metric(false);
+			double[] means = new double[clients.length];
+			long a = 0, f = 0, failed = 0;
+			int n = 0;
+			for (Client c : clients)
+			{
+				a += c.allocations;
+				f += c.frees;
+				failed += c.failedAllocations;
+				operationLatency.include(c.latency);
+				if (c.latency.isSet())
+				{
+					clientLatency.include(c.latency.getMean());
+					means[n++] = c.latency.getMean();
+				}
+			}
+			allocations = a;
+			frees = f;
+			failedAllocations = failed;
+			Arrays.sort(means, 0, n);
+			clientLatencyMedian = n > 0 ? means[n / 2] : 0;
+			clientLatencyP99 = n > 0 ? means[Math.min(n - 1, (int)(n * 0.99))] : 0;
+		}
+
+		/**
+		 * Calculates the number of allocate and free calls per second
+		 * @return Throughput
+		 */
+		public double getThroughput()
+		{
+			return (allocations + failedAllocations + frees) / (wallNanos / 1e9);
+		}
+
+		private static String round(double v)
+		{
+			return Double.toString((double)Math.round(v*100)/100);
+		}
+
+		@Override
+		public String toString()
+		{
+			StringBuilder builder = new StringBuilder();
+			builder.append("  ").append(allocatorName).append("\n");
+			if (fault != null)
+				builder.append("    faulted: ").append(fault).append("\n");
+			builder.append("    ").append(clients).append(" clients, ").append(requests).append(" requests in ")
+					.append(round(wallNanos / 1e9)).append("s: ")
+					.append(Math.round(getThroughput())).append(" ops/s\n")
+					.append("    allocations: ").append(allocations).append(" (").append(failedAllocations).append(" failed), frees: ").append(frees).append("\n")
+					.append("    lock contended: ").append(lockContended).append("/").append(lockAcquisitions)
+					.append(", total wait ").append(round(lockWaitNanos / 1e6)).append("ms\n")
+					.append("    operation latency (us): ").append(operationLatency).append("\n")
+					.append("    mean latency per client (us): median ").append(round(clientLatencyMedian))
+					.append(", p99 ").append(round(clientLatencyP99))
+					.append(", max ").append(round(clientLatency.getMax())).append("\n");
+			return builder.toString();
+		}
+	}
+
+	/**
+	 * Allocated chunk held by a client.
+	 * Updated if the allocator relocates the chunk
+	 */
+	private static class Handle
+	{
+		Allocator.MemoryChunk chunk;
+
+		Handle(Allocator.MemoryChunk chunk)
+		{
+			this.chunk = chunk;
+		}
+	}
+
+	/**
+	 * State of a simulated client.
+	 * Requests of a client run one after the other, but may overlap with
+	 * the client's pending frees. Only requests use the random source
+	 */
+	private class Client
+	{
+		final Random random;
+		final Metric latency = new Metric(false);
+		int remaining = requestsPerClient;
+		long allocations = 0, failedAllocations = 0, frees = 0;
+
+		Client(Random random)
+		{
+			this.random = random;
+		}
+
+		void request()
+		{
+			remaining--;
+			int n = 1 + random.nextInt(MAX_CHUNKS_PER_REQUEST);
+			Handle[] held = new Handle[n];
+			int count = 0;
+			for (int i = 0; i < n && fault.get() == null; i++)
+			{
+				int size = MIN_CHUNK_BYTES + random.nextInt(MAX_CHUNK_BYTES - MIN_CHUNK_BYTES + 1);
+				long start = System.nanoTime();
+				allocator.lock();
+				try
+				{
+					Allocator.MemoryChunk chunk = allocator.allocate(size, new Allocator.StepCounter());
+					if (chunk != null)
+					{
+						held[count] = new Handle(chunk);
+						handles.put(chunk, held[count++]);
+					}
+				}
+				catch (Exception ex)
+				{
+					fault.compareAndSet(null, allocator+": "+ex);
+				}
+				finally
+				{
+					allocator.unlock();
+				}
+				record(System.nanoTime() - start);
+			}
+			synchronized (this)
+			{
+				allocations += count;
+				failedAllocations += n - count;
+			}
+			final int numHeld = count;
+			schedule(() -> release(held, numHeld), MEAN_LIFETIME_MICROS);
+			if (remaining > 0)
+				schedule(this::request, MEAN_THINK_MICROS);
+		}
+
+		void release(Handle[] held, int count)
+		{
+			for (int i = 0; i < count && fault.get() == null; i++)
+			{
+				long start = System.nanoTime();
+				allocator.lock();
+				try
+				{
+					Allocator.MemoryChunk chunk = held[i].chunk;
+					handles.remove(chunk);
+					allocator.free(chunk, new Allocator.StepCounter());
+				}
+				catch (Exception ex)
+				{
+					fault.compareAndSet(null, allocator+": "+ex);
+				}
+				finally
+				{
+					allocator.unlock();
+				}
+				record(System.nanoTime() - start);
+				synchronized (this)
+				{
+					frees++;
+				}
+			}
+			pendingRequests.countDown();
+		}
+
+		synchronized void record(long nanos)
+		{
+			latency.include(nanos / 1000.0);
+		}
+
+		/**
+		 * Schedules a client step after an exponentially distributed delay.
+		 * If the step throws unexpectedly, the run is aborted: the failed
+		 * step may never release its request, so the remaining requests
+		 * are not awaited
+		 */
+		void schedule(Runnable step, double meanMicros)
+		{
+			double delay = -meanMicros * Math.log(1 - random.nextDouble());
+			executor.schedule(() ->
+			{
+				try
+				{
+					step.run();
+				}
+				catch (Throwable ex)	//also errors of the allocator, e.g. AssertionError
+				{
+					fault.compareAndSet(null, ex.toString());
+					while (pendingRequests.getCount() > 0)
+						pendingRequests.countDown();
+				}
+			}, (long)delay, TimeUnit.MICROSECONDS);
+		}
+	}
+
+	private final int numClients, requestsPerClient, threads;
+
+	private SynchronizedAllocator allocator;
+	/**
+	 * Chunks held by all clients. Only accessed while holding the
+	 * allocator's lock
+	 */
+	private final HashMap<Allocator.MemoryChunk, Handle> handles = new HashMap<>();
+	private ScheduledExecutorService executor;
+	private CountDownLatch pendingRequests;
+	private final AtomicReference<String> fault = new AtomicReference<>();
+
+	/**
+	 * Creates a new driver
+	 * @param numClients Number of concurrent clients
+	 * @param requestsPerClient Number of requests issued by each client
+	 * @param threads Number of worker threads executing client steps
+	 */
+	public ClientDriver(int numClients, int requestsPerClient, int threads)
+	{
+		this.numClients = numClients;
+		this.requestsPerClient = requestsPerClient;
+		this.threads = threads;
+	}
+
+	/**
+	 * Runs all clients against a new instance of the specified allocator
+	 * @param template Allocator to create the shared instance from
+	 * @param seed Base random seed. Client i uses runSeed(seed, i)
+	 * @return Run outcome
+	 * @throws InterruptedException
+	 */
+	public synchronized Result run(Allocator template, long seed) throws InterruptedException
+	{
+		allocator = new SynchronizedAllocator(template.createNew());
+		handles.clear();
+		fault.set(null);
+		allocator.setRelocationListener((from, to) ->
+		{
+			//invoked within an allocator call, so the lock is held
+			Handle h = handles.remove(from);
+			if (h != null)
+			{
+				h.chunk = to;
+				handles.put(to, h);
+			}
+		});
+		pendingRequests = new CountDownLatch(numClients * requestsPerClient);
+		executor = Executors.newScheduledThreadPool(threads);
+		Client[] clients = new Client[numClients];
+		for (int i = 0; i < numClients; i++)
+			clients[i] = new Client(new Random(MemAllocSimJava.runSeed(seed, i)));
+		long start = System.nanoTime();
+		try
+		{
+			for (Client c : clients)
+				c.schedule(c::request, MEAN_THINK_MICROS);
+			pendingRequests.await();
+		}
+		finally
+		{
+			executor.shutdownNow();
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		return new Result(this, allocator, clients, System.nanoTime() - start, fault.get());
+	}
+}
@@ -0,0 +1,241 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package memallocsim.java;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Evaluates every configuration of a parameterized allocator on identical
+ * workloads, in parallel, and determines the Pareto front of cost versus
+ * internal and external fragmentation.
+ * @author IronFox
+ */
+public class ConfigurationSweep
+{
+	/**
+	 * Creates allocators for a specific configuration
+	 */
+	public interface Factory
+	{
+		/**
+		 * Creates a new allocator instance
+		 * @param parameters One value per parameter of the sweep, in
+		 * declaration order
+		 * @return New allocator, no blocks allocated
+		 */
+		Allocator create(int[] parameters);
+	}
+
+	/**
+	 * Evaluation result of a single configuration
+	 */
+	public static class Result
+	{
+		public final int[] parameters;
+		public final String allocatorName;
+		/**
+		 * Mean steps per allocation or free operation
+		 */
+		public final double cost;
+		/**
+		 * Mean relative internal fragmentation
+		 */
+		public final double internalFragmentation;
+		/**
+		 * Mean relative external fragmentation
+		 */
+		public final double externalFragmentation;
+		public final int faultedRuns, runs;
+
+		Result(int[] parameters, AllocatorStateTracker tracker)
+		{
+			this.parameters = parameters;
+			allocatorName = tracker.getAllocatorName();
+			Metric totalCost = tracker.getTotalCost();
+			cost = totalCost == null ? 0 : totalCost.getMean();
+			internalFragmentation = tracker.getInternalFragmentation().getMean();
+			externalFragmentation = tracker.getExternalFragmentation().getMean();
+			faultedRuns = tracker.getNumFaultedRuns();
+			runs = tracker.getNumRuns();
+		}
+
+		/**
+		 * Checks whether the local result is usable for comparison
+		 * @return true if at least one run completed without fault
+		 */
+		public boolean isValid()
+		{
+			return faultedRuns < runs;
+		}
+
+		/**
+		 * Checks whether the local result is at least as good as the other
+		 * one in all objectives, and better in at least one
+		 * @param other Result to compare to
+		 * @return true if the local result dominates other
+		 */
+		public boolean dominates(Result other)
+		{
+			if (cost > other.cost || internalFragmentation > other.internalFragmentation || externalFragmentation > other.externalFragmentation)
+				return false;
+			return cost < other.cost || internalFragmentation < other.internalFragmentation || externalFragmentation < other.externalFragmentation;
+		}
+	}
+
+	private final String[] parameterNames;
+	private final int[][] parameterValues;
+	private final Factory factory;
+	private final ArrayList<Result> results = new ArrayList<>();
+
+	/**
+	 * Creates a new sweep over the cartesian product of all parameter values
+	 * @param parameterNames Name of each parameter
+	 * @param parameterValues Values to evaluate, per parameter
+	 * @param factory Factory creating an allocator for a combination of
+	 * parameter values
+	 */
+	public ConfigurationSweep(String[] parameterNames, int[][] parameterValues, Factory factory)
+	{
+		if (parameterNames.length != parameterValues.length)
+			throw new IllegalArgumentException("Expected one value array per parameter name");
+		this.parameterNames = parameterNames;
+		this.parameterValues = parameterValues;
+		this.factory = factory;
+	}
+
+	/**
+	 * Enumerates all combinations of parameter values
+	 * @return List of parameter arrays
+	 */
+	private List<int[]> enumerateConfigurations()
+	{
+		ArrayList<int[]> rs = new ArrayList<>();
+		int[] index = new int[parameterValues.length];
+		while (true)
+		{
+			int[] config = new int[index.length];
+			for (int i = 0; i < index.length; i++)
+				config[i] = parameterValues[i][index[i]];
+			rs.add(config);
+			int p = index.length - 1;
+			while (p >= 0 && ++index[p] == parameterValues[p].length)
+				index[p--] = 0;
+			if (p < 0)
+				return rs;
+		}
+	}
+
+	/**
+	 * Evaluates a single configuration
+	 */
+	private Result evaluate(int[] parameters, int runs, long seed) throws Exception
+	{
+		SimulationState state = new SimulationState(new Allocator[]{factory.create(parameters)});
+		for (int r = 0; r < runs; r++)
+			MemAllocSimJava.executeRun(state, new Random(MemAllocSimJava.runSeed(seed, r)));
+		return new Result(parameters, state.getAllocatorState(0));
+	}
+
+	/**
+	 * Evaluates all configurations.
+	 * Run r of every configuration uses the same random seed, so all
+	 * configurations see the same workloads
+	 * @param runs Number of runs per configuration
+	 * @param seed Base random seed
+	 * @param threads Number of configurations to evaluate concurrently
+	 * @throws Exception
+	 */
+	public void run(int runs, long seed, int threads) throws Exception
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try
+		{
+			ArrayList<Future<Result>> pending = new ArrayList<>();
+			for (int[] config : enumerateConfigurations())
+				pending.add(executor.submit(() -> evaluate(config, runs, seed)));
+			results.clear();
+			for (Future<Result> f : pending)
+				results.add(f.get());
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Retrieves the results of the last run()
+	 * @return Results in configuration order
+	 */
+	public List<Result> getResults()
+	{
+		return results;
+	}
+
+	/**
+	 * Determines all valid results that are not dominated by any other
+	 * valid result
+	 * @return Pareto-optimal results, in configuration order
+	 */
+	public List<Result> getParetoFront()
+	{
+		ArrayList<Result> rs = new ArrayList<>();
+		for (Result candidate : results)
+		{
+			if (!candidate.isValid())
+				continue;
+			boolean dominated = false;
+			for (Result other : results)
+				if (other.isValid() && other.dominates(candidate))
+				{
+					dominated = true;
+					break;
+				}
+			if (!dominated)
+				rs.add(candidate);
+		}
+		return rs;
+	}
+
+	private void appendTo(StringBuilder builder, Result r)
+	{
+		builder.append("  ");
+		for (int i = 0; i < parameterNames.length; i++)
+			builder.append(parameterNames[i]).append("=").append(r.parameters[i]).append(" ");
+		builder.append("(").append(r.allocatorName).append(")");
+		if (!r.isValid())
+		{
+			builder.append(": faulted in all ").append(r.runs).append(" run(s)\n");
+			return;
+		}
+		builder.append(": cost ").append((double)Math.round(r.cost*100)/100)
+				.append(", internal ").append((double)Math.round(r.internalFragmentation*10000)/100).append("%")
+				.append(", external ").append((double)Math.round(r.externalFragmentation*10000)/100).append("%");
+		if (r.faultedRuns > 0)
+			builder.append(", faulted ").append(r.faultedRuns).append("/").append(r.runs);
+		builder.append("\n");
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder builder = new StringBuilder();
+		builder.append("Sweep of ").append(Arrays.toString(parameterNames))
+				.append(" (").append(results.size()).append(" configurations):\n");
+		for (Result r : results)
+			appendTo(builder, r);
+		builder.append("Pareto front (cost vs. internal vs. external fragmentation):\n");
+		for (Result r : getParetoFront())
+			appendTo(builder, r);
+		return builder.toString();
+	}
+}
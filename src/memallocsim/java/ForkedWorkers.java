@@ -0,0 +1,342 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package memallocsim.java;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Distributes the simulation across forked JVMs.
+ * Allocators are partitioned into groups. Each worker process simulates
+ * one group, so allocators of different groups do not share heap, garbage
+ * collector, or JIT profile. If there are more workers than allocators,
+ * groups are replicated, and each replica runs the workload of its own
+ * seed. The coordinator drives all workers in lock step over their
+ * standard input and output: every worker executes the same runs, until
+ * the allocators of all workers have converged. Workers then stream their
+ * accumulated state back, where the coordinator merges it.
+ * @author IronFox
+ */
+public final class ForkedWorkers
+{
+	private final static int MAGIC = 0x4D415357;	//"MASW"
+	/**
+	 * Command that ends a worker, instead of a run count
+	 */
+	private final static int STOP = -1;
+
+	/**
+	 * Allocators and seed of a single worker
+	 */
+	public final static class Assignment
+	{
+		/**
+		 * Indices into MemAllocSimJava.createAllocators()
+		 */
+		public final int[] allocators;
+		/**
+		 * Replica of the allocator group, 0 for the first worker of the group
+		 */
+		public final int replica;
+		public final long seed;
+
+		Assignment(int[] allocators, int replica, long seed)
+		{
+			this.allocators = allocators;
+			this.replica = replica;
+			this.seed = seed;
+		}
+	}
+
+	/**
+	 * Outcome of all workers
+	 */
+	public final static class Result
+	{
+		/**
+		 * Merged state of all allocators
+		 */
+		public final SimulationState state;
+		/**
+		 * Wall-clock time per run, over the runs of all workers
+		 */
+		public final Metric wallClockPerRun = new Metric(false);
+		/**
+		 * Number of runs executed by each worker
+		 */
+		public final int[] runs;
+
+		Result(SimulationState state, int workers)
+		{
+			this.state = state;
+			runs = new int[workers];
+		}
+	}
+
+	private final Assignment[] assignments;
+	private final List<String> workerArgs;
+
+	/**
+	 * Creates a new coordinator
+	 * @param workers Number of worker processes
+	 * @param seed Base random seed. The first replica of each group uses
+	 * it as is
+	 * @param workerArgs Additional command line arguments passed to each
+	 * worker, e.g. --cache
+	 */
+	public ForkedWorkers(int workers, long seed, List<String> workerArgs)
+	{
+		assignments = assign(MemAllocSimJava.createAllocators().length, workers, seed);
+		this.workerArgs = workerArgs;
+	}
+
+	/**
+	 * Partitions allocators across workers.
+	 * Allocator i belongs to group i % groups, where groups is the lesser
+	 * of the worker and allocator counts. Worker w simulates group
+	 * w % groups, as replica w / groups. Every group has the same number of
+	 * replicas, so all allocators are measured on the same workloads
+	 * @param numAllocators Number of allocators
+	 * @param workers Number of workers
+	 * @param seed Base random seed
+	 * @return Assignment of each worker
+	 */
+	static Assignment[] assign(int numAllocators, int workers, long seed)
+	{
+		if (workers <= 0)
+			throw new IllegalArgumentException("Worker count must be positive: "+workers);
+		if (workers > numAllocators && workers % numAllocators != 0)
+			throw new IllegalArgumentException("Worker count must not exceed "+numAllocators
+					+" (the number of allocators), or be a multiple of it: "+workers);
+		int groups = Math.min(workers, numAllocators);
+		Assignment[] rs = new Assignment[workers];
+		for (int w = 0; w < workers; w++)
+		{
+			int group = w % groups;
+			int[] indices = new int[(numAllocators - group + groups - 1) / groups];
+			for (int i = 0; i < indices.length; i++)
+				indices[i] = group + i * groups;
+			int replica = w / groups;
+			//runSeed() mixes the base seed, so replica seeds yield unrelated workloads
+			rs[w] = new Assignment(indices, replica, seed + replica);
+		}
+		return rs;
+	}
+
+	/**
+	 * Formats allocator indices as the value of the --worker argument
+	 * @param indices Allocator indices
+	 * @return Comma-separated indices
+	 */
+	static String formatIndices(int[] indices)
+	{
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < indices.length; i++)
+		{
+			if (i > 0)
+				builder.append(',');
+			builder.append(indices[i]);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Parses the value of the --worker argument
+	 * @param value Comma-separated allocator indices
+	 * @return Allocator indices
+	 */
+	static int[] parseIndices(String value)
+	{
+		String[] parts = value.split(",");
+		int[] rs = new int[parts.length];
+		for (int i = 0; i < parts.length; i++)
+			rs[i] = Integer.parseInt(parts[i].trim());
+		return rs;
+	}
+
+	/**
+	 * Selects a subset of allocators
+	 * @param all All allocators
+	 * @param indices Indices of the allocators to select
+	 * @return Selected allocators, in index order
+	 */
+	static Allocator[] select(Allocator[] all, int[] indices)
+	{
+		Allocator[] rs = new Allocator[indices.length];
+		for (int i = 0; i < indices.length; i++)
+		{
+			if (indices[i] < 0 || indices[i] >= all.length)
+				throw new IllegalArgumentException("No allocator "+indices[i]+" (of "+all.length+")");
+			rs[i] = all[indices[i]];
+		}
+		return rs;
+	}
+
+	/**
+	 * Executes the worker side of the protocol.
+	 * After warm-up, the worker repeatedly reads a run count from the
+	 * commands, executes runs until it has completed that many, and
+	 * replies whether its allocators have converged. Once it reads STOP,
+	 * it writes its result and returns
+	 * @param indices Indices of the allocators to simulate
+	 * @param seed Base random seed
+	 * @param commands Input of the coordinator's commands, usually the
+	 * standard input
+	 * @param replies Output to the coordinator, usually the original
+	 * standard output
+	 * @throws Exception
+	 */
+	static void runWorker(int[] indices, long seed, InputStream commands, OutputStream replies) throws Exception
+	{
+		SimulationState state = new SimulationState(select(MemAllocSimJava.createAllocators(), indices));
+		DataInputStream in = new DataInputStream(new BufferedInputStream(commands));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(replies));
+		out.writeInt(MAGIC);
+		out.flush();
+		int warmUpRuns = MemAllocSimJava.warmUp(state, seed);
+		System.out.println("Warmed up in "+warmUpRuns+" run(s)"+(warmUpRuns < MemAllocSimJava.MAX_WARMUP_RUNS ? " (stable)" : ""));
+		Metric wallClockPerRun = new Metric(false);
+		int runs = 0;
+		for (int target = in.readInt(); target != STOP; target = in.readInt())
+		{
+			for (; runs < target; runs++)
+			{
+				long start = System.nanoTime();
+				MemAllocSimJava.executeRun(state, new Random(MemAllocSimJava.runSeed(seed, runs)));
+				wallClockPerRun.include((System.nanoTime() - start) / 1e6);
+			}
+			out.writeBoolean(state.hasConverged(MemAllocSimJava.CONFIDENCE_Z, MemAllocSimJava.TARGET_RELATIVE_CONFIDENCE));
+			out.flush();
+		}
+		System.out.println("Executed "+runs+" run(s)");
+		out.writeInt(runs);
+		wallClockPerRun.writeTo(out);
+		state.writeTo(out);
+		out.flush();
+	}
+
+	/**
+	 * Starts all workers, drives them until all allocators have converged
+	 * or MAX_RUNS runs were executed, and merges their results.
+	 * Convergence is checked after every run once MIN_RUNS runs are
+	 * complete, as in a single-process simulation
+	 * @return Merged result
+	 * @throws IOException if a worker could not be started, or failed
+	 * @throws InterruptedException
+	 */
+	public Result run() throws IOException, InterruptedException
+	{
+		String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+		Process[] processes = new Process[assignments.length];
+		DataOutputStream[] commands = new DataOutputStream[assignments.length];
+		DataInputStream[] replies = new DataInputStream[assignments.length];
+		int w = 0;
+		try
+		{
+			for (w = 0; w < assignments.length; w++)
+			{
+				List<String> command = new ArrayList<>();
+				command.add(java);
+				command.add("-cp");
+				command.add(System.getProperty("java.class.path"));
+				command.add(MemAllocSimJava.class.getName());
+				command.add("--worker");
+				command.add(formatIndices(assignments[w].allocators));
+				command.add("--seed");
+				command.add(Long.toString(assignments[w].seed));
+				command.addAll(workerArgs);
+				processes[w] = new ProcessBuilder(command)
+						.redirectError(ProcessBuilder.Redirect.INHERIT)
+						.start();
+				commands[w] = new DataOutputStream(new BufferedOutputStream(processes[w].getOutputStream()));
+				replies[w] = new DataInputStream(new BufferedInputStream(processes[w].getInputStream()));
+			}
+			for (w = 0; w < assignments.length; w++)
+				if (replies[w].readInt() != MAGIC)
+					throw new IOException("Worker "+w+" sent an invalid response");
+
+			int runs = MemAllocSimJava.MIN_RUNS;
+			while (true)
+			{
+				for (w = 0; w < assignments.length; w++)
+				{
+					commands[w].writeInt(runs);
+					commands[w].flush();
+				}
+				boolean converged = true;
+				for (w = 0; w < assignments.length; w++)
+					converged &= replies[w].readBoolean();
+				if (converged || runs >= MemAllocSimJava.MAX_RUNS)
+					break;
+				runs++;
+			}
+
+			Result rs = new Result(new SimulationState(MemAllocSimJava.createAllocators()), assignments.length);
+			for (w = 0; w < assignments.length; w++)
+			{
+				commands[w].writeInt(STOP);
+				commands[w].flush();
+			}
+			for (w = 0; w < assignments.length; w++)
+			{
+				Assignment a = assignments[w];
+				SimulationState state = new SimulationState(select(MemAllocSimJava.createAllocators(), a.allocators));
+				Metric wallClock = new Metric(false);
+				rs.runs[w] = replies[w].readInt();
+				wallClock.readFrom(replies[w]);
+				state.readFrom(replies[w]);
+				int status = processes[w].waitFor();
+				if (status != 0)
+					throw new IOException("Worker "+w+" exited with status "+status);
+				//workers of the other groups execute the same runs as group 0
+				rs.state.include(state, a.allocators[0] == 0);
+				rs.wallClockPerRun.include(wallClock);
+			}
+			return rs;
+		}
+		catch (EOFException ex)
+		{
+			throw new IOException("Worker "+w+" exited with status "+processes[w].waitFor()+" before completing the protocol");
+		}
+		finally
+		{
+			for (Process p : processes)
+				if (p != null)
+					p.destroy();
+		}
+	}
+
+	/**
+	 * Describes the assignment of each worker and its number of runs
+	 * @param result Result returned by run()
+	 * @return Description, one line per worker
+	 */
+	public String describe(Result result)
+	{
+		StringBuilder builder = new StringBuilder();
+		Allocator[] all = MemAllocSimJava.createAllocators();
+		for (int w = 0; w < assignments.length; w++)
+		{
+			Assignment a = assignments[w];
+			builder.append("  worker ").append(w).append(" (seed ").append(a.seed).append("): ")
+					.append(result.runs[w]).append(" run(s) of");
+			for (Allocator alloc : select(all, a.allocators))
+				builder.append(" ").append(alloc);
+			builder.append("\n");
+		}
+		return builder.toString();
+	}
+}
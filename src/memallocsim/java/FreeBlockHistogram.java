@@ -0,0 +1,122 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package memallocsim.java;
+
+/**
+ * Log2-bucketed distribution of free memory blocks.
+ * Bucket k holds the bytes of all free blocks with a size in [2^k,2^(k+1)).
+ * External fragmentation can be derived exactly for any power-of-two
+ * threshold, so a single pass over an allocator's free blocks answers
+ * all such thresholds at once.
+ * Instances are meant to be reused via clear()
+ * @author IronFox
+ */
+public class FreeBlockHistogram
+{
+	/**
+	 * Number of buckets. Covers any positive int block size
+	 */
+	public final static int NUM_BUCKETS = 32;
+	/**
+	 * Largest bucket that can be populated by a block in [0,MEMORY_SIZE]
+	 */
+	public final static int MAX_BUCKET = 31 - Integer.numberOfLeadingZeros(Allocator.MEMORY_SIZE);
+
+	private final int[] bucketBytes = new int[NUM_BUCKETS];
+	private int unusableBytes = 0;
+
+	/**
+	 * Resets all buckets to zero
+	 */
+	public void clear()
+	{
+		for (int i = 0; i < NUM_BUCKETS; i++)
+			bucketBytes[i] = 0;
+		unusableBytes = 0;
+	}
+
+	/**
+	 * Determines the bucket a block of the specified size falls into
+	 * @param blockBytes Block size in bytes. Must be positive
+	 * @return Bucket index, i.e. floor(log2(blockBytes))
+	 */
+	public static int bucketOf(int blockBytes)
+	{
+		return 31 - Integer.numberOfLeadingZeros(blockBytes);
+	}
+
+	/**
+	 * Includes a free block that can be allocated from
+	 * @param blockBytes Size of the free block in bytes. Blocks of size 0
+	 * are ignored
+	 */
+	public void include(int blockBytes)
+	{
+		if (blockBytes > 0)
+			bucketBytes[bucketOf(blockBytes)] += blockBytes;
+	}
+
+	/**
+	 * Includes free memory that can not satisfy any allocation request,
+	 * regardless of its size. E.g. memory that will never be reused
+	 * @param bytes Number of unusable bytes
+	 */
+	public void includeUnusable(int bytes)
+	{
+		unusableBytes += bytes;
+	}
+
+	/**
+	 * Retrieves the bytes recorded in a specific bucket
+	 * @param bucket Bucket index in [0,NUM_BUCKETS)
+	 * @return Sum of the sizes of all blocks in this bucket
+	 */
+	public int getBucketBytes(int bucket)
+	{
+		return bucketBytes[bucket];
+	}
+
+	public int getUnusableBytes()
+	{
+		return unusableBytes;
+	}
+
+	/**
+	 * Calculates the external fragmentation for requests of
+	 * 2^log2Threshold bytes.
+	 * Equivalent to Allocator.getExternalFragmentationBytes(1 &lt;&lt; log2Threshold)
+	 * @param log2Threshold Binary logarithm of the request size
+	 * @return Sum of all free memory that can not satisfy the request
+	 */
+	public int getExternalFragmentationBytes(int log2Threshold)
+	{
+		int rs = unusableBytes;
+		for (int i = 0; i < log2Threshold && i < NUM_BUCKETS; i++)
+			rs += bucketBytes[i];
+		return rs;
+	}
+
+	/**
+	 * Fills the specified histogram by repeatedly querying
+	 * Allocator.getExternalFragmentationBytes() at power-of-two thresholds.
+	 * Used as fallback for allocators that do not report their free
+	 * blocks directly
+	 * @param allocator Allocator to query
+	 * @param histogram Histogram to fill. Cleared first
+	 */
+	public static void fillFrom(Allocator allocator, FreeBlockHistogram histogram)
+	{
+		histogram.clear();
+		int below = allocator.getExternalFragmentationBytes(1);
+		histogram.unusableBytes = below;
+		for (int k = 0; k <= MAX_BUCKET; k++)
+		{
+			int next = allocator.getExternalFragmentationBytes(1 << (k+1));
+			histogram.bucketBytes[k] = next - below;
+			below = next;
+		}
+	}
+}
@@ -0,0 +1,320 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package memallocsim.java;
+
+import java.util.ArrayList;
+
+/**
+ * Managed heap simulation.
+ * Allocates by bumping a pointer and never reuses freed memory directly.
+ * Freeing a chunk only marks it unreachable. Once the heap is full, a
+ * collector reclaims all unreachable chunks and moves the reachable ones,
+ * reporting them through the relocation listener.
+ * @author IronFox
+ */
+public class GarbageCollectedAllocator implements Allocator
+{
+	/**
+	 * Collection strategy
+	 */
+	public enum Collector
+	{
+		/**
+		 * Heap is split in two halves. Allocation happens in one half,
+		 * collection copies all reachable chunks into the other half
+		 */
+		SEMISPACE_COPYING("semispace copying"),
+		/**
+		 * Allocation uses the entire heap. Collection marks reachable
+		 * chunks, sweeps the heap, and slides reachable chunks towards
+		 * address 0
+		 */
+		MARK_COMPACT("mark-compact");
+
+		private final String name;
+
+		Collector(String name)
+		{
+			this.name = name;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name;
+		}
+	}
+
+	/**
+	 * Number of bytes copied per step when a chunk is moved
+	 */
+	public final static int COPY_BYTES_PER_STEP = 8;
+
+	private final Collector collector;
+
+	/**
+	 * Reachable chunks, ordered by byteOffset
+	 */
+	private final ArrayList<MemoryChunk> live = new ArrayList<>();
+	private int spaceStart = 0, spaceEnd, top = 0;
+	private int liveBytes = 0, deadChunks = 0;
+	private RelocationListener relocationListener;
+	private CollectionListener collectionListener;
+	private PageMap pages;
+
+	public GarbageCollectedAllocator(Collector collector)
+	{
+		this.collector = collector;
+		spaceEnd = collector == Collector.SEMISPACE_COPYING ? MEMORY_SIZE / 2 : MEMORY_SIZE;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "GC("+collector+")";
+	}
+
+	private static int alignUp(int offset, int alignment)
+	{
+		return (offset + alignment - 1) & ~(alignment - 1);
+	}
+
+	/**
+	 * Moves a reachable chunk to a new offset
+	 * @return Number of bytes copied
+	 */
+	private int move(int index, int dest, StepCounter counter)
+	{
+		MemoryChunk c = live.get(index);
+		if (dest == c.byteOffset)
+			return 0;
+		MemoryChunk moved = new MemoryChunk(dest, c.byteSize, c.alignment, c.paddingBytes);
+		live.set(index, moved);
+		counter.add(StepCategory.COPY, c.byteSize / COPY_BYTES_PER_STEP);
+		if (relocationListener != null)
+			relocationListener.relocated(c, moved);
+		return c.byteSize;
+	}
+
+	/**
+	 * Reclaims all unreachable chunks
+	 */
+	private void collect(StepCounter counter)
+	{
+		long before = counter.getSteps();
+		int copied = 0;
+		//mark: trace all reachable chunks
+		counter.add(StepCategory.METADATA, live.size());
+		for (MemoryChunk c : live)
+			counter.touch(c.byteOffset);
+		int fromStart = spaceStart;
+		if (collector == Collector.SEMISPACE_COPYING)
+		{
+			int toStart = spaceStart == 0 ? MEMORY_SIZE / 2 : 0;
+			int dest = toStart;
+			for (MemoryChunk c : live)
+				dest = alignUp(dest, c.alignment) + c.byteSize;
+			if (dest > toStart + MEMORY_SIZE / 2)
+				return;	//reachable chunks do not fit: out of memory
+			dest = toStart;
+			for (int i = 0; i < live.size(); i++)
+			{
+				counter.inc(StepCategory.COPY);
+				MemoryChunk c = live.get(i);
+				dest = alignUp(dest, c.alignment);
+				copied += move(i, dest, counter);
+				dest += c.byteSize;
+			}
+			spaceStart = toStart;
+			spaceEnd = toStart + MEMORY_SIZE / 2;
+			top = dest;
+		}
+		else
+		{
+			//sweep visits reachable and unreachable chunks alike
+			counter.add(StepCategory.COALESCE, live.size() + deadChunks);
+			int dest = 0;
+			for (int i = 0; i < live.size(); i++)
+			{
+				counter.inc(StepCategory.COPY);
+				MemoryChunk c = live.get(i);
+				dest = alignUp(dest, c.alignment);
+				copied += move(i, dest, counter);
+				dest += c.byteSize;
+			}
+			top = dest;
+		}
+		deadChunks = 0;
+		if (pages != null)
+		{
+			//return all memory freed by the collection
+			counter.inc(StepCategory.METADATA);
+			pages.release(top, spaceEnd - top);
+			if (collector == Collector.SEMISPACE_COPYING)
+			{
+				counter.inc(StepCategory.METADATA);
+				pages.release(fromStart, MEMORY_SIZE / 2);
+			}
+		}
+		if (collectionListener != null)
+			collectionListener.collected(counter.getSteps() - before, copied);
+	}
+
+	private MemoryChunk allocate(int numBytes, int alignment, StepCounter counter)
+	{
+		if (numBytes <= 0)
+			return null;
+		counter.inc(StepCategory.METADATA);
+		int start = alignUp(top, alignment);
+		if (start + numBytes > spaceEnd)
+		{
+			collect(counter);
+			start = alignUp(top, alignment);
+			if (start + numBytes > spaceEnd)
+				return null;
+		}
+		MemoryChunk rs = new MemoryChunk(start, numBytes, alignment, 0);
+		live.add(rs);
+		top = start + numBytes;
+		liveBytes += numBytes;
+		return rs;
+	}
+
+	@Override
+	public MemoryChunk allocate(int numBytes, StepCounter counter)
+	{
+		return allocate(numBytes, 1, counter);
+	}
+
+	@Override
+	public MemoryChunk allocateAligned(int numBytes, int alignment, StepCounter counter)
+	{
+		return allocate(numBytes, alignment, counter);
+	}
+
+	/**
+	 * Locates a reachable chunk via binary search
+	 * @return Index of the chunk in live
+	 */
+	private int indexOf(MemoryChunk chunk, StepCounter counter)
+	{
+		int lower = 0, upper = live.size()-1;
+		while (lower <= upper)
+		{
+			counter.inc(StepCategory.SEARCH);
+			int mid = (lower + upper) >>> 1;
+			MemoryChunk c = live.get(mid);
+			counter.touch(c.byteOffset);
+			if (c.byteOffset < chunk.byteOffset)
+				lower = mid+1;
+			else if (c.byteOffset > chunk.byteOffset)
+				upper = mid-1;
+			else if (c.equals(chunk))
+				return mid;
+			else
+				break;
+		}
+		throw new IllegalArgumentException(this+": chunk "+chunk+" is not allocated");
+	}
+
+	@Override
+	public void free(MemoryChunk chunk, StepCounter counter)
+	{
+		if (chunk == null)
+			return;
+		live.remove(indexOf(chunk, counter));
+		liveBytes -= chunk.byteSize;
+		deadChunks++;
+	}
+
+	@Override
+	public MemoryChunk reallocate(MemoryChunk chunk, int newSize, StepCounter counter)
+	{
+		if (newSize <= 0)
+			return null;
+		int at = indexOf(chunk, counter);
+		if (at == live.size()-1 && chunk.getEnd() == top && chunk.byteOffset + newSize <= spaceEnd)
+		{
+			//most recent chunk: move the pointer
+			MemoryChunk rs = new MemoryChunk(chunk.byteOffset, newSize, chunk.alignment, 0);
+			live.set(at, rs);
+			top = rs.getEnd();
+			liveBytes += newSize - chunk.byteSize;
+			return rs;
+		}
+		//a collection triggered here moves the original chunk, but keeps its index
+		MemoryChunk rs = allocate(newSize, chunk.alignment, counter);
+		if (rs == null)
+			return null;
+		counter.add(StepCategory.COPY, Math.min(chunk.byteSize, newSize) / COPY_BYTES_PER_STEP);
+		MemoryChunk current = live.remove(at);
+		liveBytes -= current.byteSize;
+		deadChunks++;
+		return rs;
+	}
+
+	@Override
+	public void setRelocationListener(RelocationListener listener)
+	{
+		relocationListener = listener;
+	}
+
+	@Override
+	public void setCollectionListener(CollectionListener listener)
+	{
+		collectionListener = listener;
+	}
+
+	@Override
+	public void setPageMap(PageMap pages)
+	{
+		this.pages = pages;
+	}
+
+	@Override
+	public int getInternalFragmentationBytes()
+	{
+		return 0;
+	}
+
+	/**
+	 * Calculates the bytes that can not be allocated before the next
+	 * collection, plus the reserved half of a semispace heap
+	 */
+	private int getUnusableBytes()
+	{
+		return MEMORY_SIZE - (spaceEnd - spaceStart) + (top - spaceStart - liveBytes);
+	}
+
+	@Override
+	public int getExternalFragmentationBytes(int allocRequestBytes)
+	{
+		int rs = getUnusableBytes();
+		if (allocRequestBytes > spaceEnd - top)
+			rs += spaceEnd - top;
+		return rs;
+	}
+
+	@Override
+	public void fillFreeBlockHistogram(FreeBlockHistogram histogram)
+	{
+		histogram.clear();
+		histogram.includeUnusable(getUnusableBytes());
+		histogram.include(spaceEnd - top);
+	}
+
+	@Override
+	public int getOccupiedMemoryBytes()
+	{
+		return liveBytes;
+	}
+
+	@Override
+	public Allocator createNew()
+	{
+		return new GarbageCollectedAllocator(collector);
+	}
+}
@@ -5,7 +5,12 @@
  */
 package memallocsim.java;
 
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 /**
@@ -24,58 +29,524 @@ public class MemAllocSimJava
 	 * Maximum number of bytes to allocate
 	 */
 	final static int ALLOCATE_UP_TO = Allocator.MEMORY_SIZE /5;
+	/**
+	 * Number of workload iterations per run
+	 */
+	final static int ITERATIONS_PER_RUN = 10000;
+	/**
+	 * Maximum number of allocations or frees issued per batch
+	 */
+	final static int BATCH_SIZE = 4;
+	/**
+	 * Probability of growing a random chunk per iteration
+	 */
+	final static double GROWTH_PROBABILITY = 0.1;
+	/**
+	 * Factor by which chunks are grown
+	 */
+	final static double GROWTH_FACTOR = 1.5;
+	/**
+	 * Probability of an additional aligned allocation per iteration
+	 */
+	final static double ALIGNED_PROBABILITY = 0.1;
+	/**
+	 * Alignments to choose from for aligned allocations (cache line, page)
+	 */
+	final static int[] ALIGNMENTS = {64, 4096};
+	/**
+	 * Number of random chunk accesses per iteration, fed to the cache
+	 * simulation if enabled
+	 */
+	final static int ACCESSES_PER_ITERATION = 8;
+	/**
+	 * Number of simulated owners (threads) that issue the requests of an
+	 * iteration, for allocators that partition memory by owner
+	 */
+	final static int SIMULATED_OWNERS = 8;
+	/**
+	 * Number of runs to execute before convergence is checked
+	 */
+	final static int MIN_RUNS = 30;
+	/**
+	 * Number of runs after which the simulation stops, even if the metrics
+	 * have not converged
+	 */
+	final static int MAX_RUNS = 1000;
+	/**
+	 * Quantile of the standard normal distribution for the convergence
+	 * check (95% confidence)
+	 */
+	final static double CONFIDENCE_Z = 1.96;
+	/**
+	 * The simulation stops once the confidence interval of the per-run means
+	 * of all key metrics is narrower than +- this fraction of the mean
+	 */
+	final static double TARGET_RELATIVE_CONFIDENCE = 0.01;
+	/**
+	 * Number of buckets per time series, if recording is enabled
+	 */
+	final static int TIME_SERIES_BUCKETS = 1024;
+	/**
+	 * Number of requests issued by each client of the concurrent driver
+	 */
+	final static int CLIENT_REQUESTS = 20;
+	/**
+	 * Number of runs between two checkpoints, if checkpointing is enabled
+	 */
+	final static int CHECKPOINT_INTERVAL = 50;
+	/**
+	 * Warm-up ends once the wall-clock times of the last WARMUP_WINDOW
+	 * warm-up runs vary by less than this coefficient of variation
+	 */
+	final static double WARMUP_CV = 0.05;
+	/**
+	 * Number of most recent warm-up runs checked for stable timing
+	 */
+	final static int WARMUP_WINDOW = 5;
+	/**
+	 * Number of warm-up runs after which warm-up ends, even if timings have
+	 * not stabilized
+	 */
+	final static int MAX_WARMUP_RUNS = 50;
+
+	/**
+	 * Derives the random seed of a specific run from a base seed.
+	 * Every run uses its own random source, so the workload of run r
+	 * depends only on the base seed and r, not on the runs before it
+	 * @param seed Base random seed
+	 * @param run Run index
+	 * @return Seed for the run's random source
+	 */
+	static long runSeed(long seed, int run)
+	{
+		//SplitMix64 finalizer, spreads consecutive runs apart
+		long z = seed + (run + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+	
+	/**
+	 * Executes the default random workload on the specified state
+	 * for a single run.
+	 * Does not end the run
+	 * @param state State to execute the workload on
+	 * @param random Random source
+	 * @throws Exception 
+	 */
+	static void simulateRun(SimulationState state, Random random) throws Exception
+	{
+		int[] sizes = new int[BATCH_SIZE];
+		//own stream, so that owners do not depend on the number of draws per iteration
+		Random owners = new Random(random.nextLong());
+		for (int i = 0; i < ITERATIONS_PER_RUN; i += BATCH_SIZE)
+		{
+			state.setOwner(owners.nextInt(SIMULATED_OWNERS));
+			int allocated = state.getCurrentlyAllocatedBytes();
+			if (allocated < FORCED_ALLOCATION_THRESHOLD || (random.nextBoolean() && allocated < ALLOCATE_UP_TO))
+			{
+				//same count distribution as frees, so batching does not shift the balance
+				int count = 1 + random.nextInt(BATCH_SIZE);
+				int n = 0, planned = allocated;
+				while (n < count && planned < ALLOCATE_UP_TO)
+				{
+					sizes[n] = random.nextInt(256) * random.nextInt(256);
+					planned += sizes[n++];
+				}
+				state.allocateBatch(sizes, n);
+				allocated = state.getCurrentlyAllocatedBytes();
+			}
+			if (allocated < ALLOCATE_UP_TO && random.nextDouble() < ALIGNED_PROBABILITY)
+			{
+				state.allocate(random.nextInt(256) * random.nextInt(256), ALIGNMENTS[random.nextInt(ALIGNMENTS.length)]);
+				allocated = state.getCurrentlyAllocatedBytes();
+			}
+			if (allocated < ALLOCATE_UP_TO && random.nextDouble() < GROWTH_PROBABILITY)
+			{
+				state.growRandom(random, GROWTH_FACTOR);
+				allocated = state.getCurrentlyAllocatedBytes();
+			}
+			if (allocated >= ALLOCATE_UP_TO || (random.nextBoolean() && allocated > FORCED_ALLOCATION_THRESHOLD) )
+				state.freeRandomBatch(random, 1 + random.nextInt(BATCH_SIZE));
+			state.accessRandom(random, ACCESSES_PER_ITERATION);
+		}
+	}
 	
 	/**
-	 * @param args the command line arguments
+	 * Executes and ends a single run of the default workload.
+	 * Faults are recorded by the respective trackers, other exceptions
+	 * are reported to stderr
+	 * @param state State to execute the workload on
+	 * @param random Random source
+	 * @throws Exception 
+	 */
+	static void executeRun(SimulationState state, Random random) throws Exception
+	{
+		executeRun(state, random, true);
+	}
+
+	/**
+	 * Executes and ends a single run of the default workload.
+	 * Faults are recorded by the respective trackers, other exceptions
+	 * are reported to stderr
+	 * @param state State to execute the workload on
+	 * @param random Random source
+	 * @param include True to include the run in the recorded metrics,
+	 * false to discard it
+	 * @throws Exception 
+	 */
+	static void executeRun(SimulationState state, Random random, boolean include) throws Exception
+	{
+		try
+		{
+			simulateRun(state, random);
+		}
+		catch (SimulationState.AllAllocatorsHaveFaultedException ex)
+		{}
+		catch (Exception ex)
+		{
+			System.err.println(ex);
+		}
+		state.endRun(include);
+	}
+
+	/**
+	 * Executes discarded runs until the JIT compiler has settled.
+	 * Every warm-up run replays the same workload, so its wall-clock time
+	 * only changes with the compiled state of the simulation code.
+	 * Warm-up ends once the timings of the last WARMUP_WINDOW runs are
+	 * stable, or after MAX_WARMUP_RUNS runs
+	 * @param state State to warm up. Recorded metrics remain unchanged
+	 * @param seed Base random seed
+	 * @return Number of executed warm-up runs
+	 * @throws Exception 
+	 */
+	static int warmUp(SimulationState state, long seed) throws Exception
+	{
+		long[] window = new long[WARMUP_WINDOW];
+		int runs = 0;
+		while (runs < MAX_WARMUP_RUNS)
+		{
+			long start = System.nanoTime();
+			executeRun(state, new Random(runSeed(seed, -1)), false);
+			window[runs % WARMUP_WINDOW] = System.nanoTime() - start;
+			runs++;
+			if (runs >= WARMUP_WINDOW)
+			{
+				Metric m = new Metric(false);
+				for (long t : window)
+					m.include(t);
+				if (m.getDeviation() < WARMUP_CV * m.getMean())
+					break;
+			}
+		}
+		return runs;
+	}
+
+	/**
+	 * Warms up the state, then executes runs until all key metrics have
+	 * converged, or MAX_RUNS runs were executed
+	 * @param state State to simulate
+	 * @param seed Base random seed
+	 * @param first Index of the first run to execute, non-zero if resumed
+	 * from a checkpoint
+	 * @param checkpoint File to periodically write checkpoints to, or null
+	 * @param wallClockPerRun Receives the wall-clock time of each run in ms
+	 * @return Number of completed runs, including the ones before first
+	 * @throws Exception 
+	 */
+	static int simulate(SimulationState state, long seed, int first, Path checkpoint, Metric wallClockPerRun) throws Exception
+	{
+		int warmUpRuns = warmUp(state, seed);
+		System.out.println("Warmed up in "+warmUpRuns+" run(s)"+(warmUpRuns < MAX_WARMUP_RUNS ? " (stable)" : ""));
+		int j;
+		for (j = first; j < MAX_RUNS; j++)
+		{
+			if (j >= MIN_RUNS && state.hasConverged(CONFIDENCE_Z, TARGET_RELATIVE_CONFIDENCE))
+				break;
+			long start = System.nanoTime();
+			executeRun(state, new Random(runSeed(seed, j)));
+			wallClockPerRun.include((System.nanoTime() - start) / 1e6);
+			if ( (j % (MAX_RUNS / 20)) == 0)
+				System.out.println(Math.round((double)j / MAX_RUNS*100)+"%");
+			if (checkpoint != null && ((j+1) % CHECKPOINT_INTERVAL) == 0)
+				Checkpoint.write(checkpoint, seed, j+1, state);
+//			System.out.flush();
+		}
+		if (checkpoint != null)
+			Checkpoint.write(checkpoint, seed, j, state);
+		System.out.println("Executed "+j+" run(s)"+(j < MAX_RUNS ? " (converged)" : ""));
+		if (wallClockPerRun.isSet())
+			System.out.println("Wall-clock ms per run: "+wallClockPerRun);
+		return j;
+	}
+
+	/**
+	 * Creates the allocators to simulate
+	 * @return New allocator instances
+	 */
+	static Allocator[] createAllocators()
+	{
+		return new Allocator[]{
+				//your allocators here
+				new SlidingCompactingAllocator(),
+				new GarbageCollectedAllocator(GarbageCollectedAllocator.Collector.SEMISPACE_COPYING),
+				new GarbageCollectedAllocator(GarbageCollectedAllocator.Collector.MARK_COMPACT),
+				new ArenaAllocator(4, ArenaAllocator.Routing.SIZE_CLASS),
+				new ArenaAllocator(4, ArenaAllocator.Routing.ROUND_ROBIN),
+				new BestFitAllocator(),
+				new StackAllocator(), //remove
+				new NullAllocator(), //remove
+		};
+	}
+
+	/**
+	 * Sweeps the configuration space of the parameterized allocators
+	 * (split threshold, arena count and routing)
+	 * and prints the Pareto front
+	 * @throws Exception 
+	 */
+	static void runSweep() throws Exception
+	{
+		ConfigurationSweep sweep = new ConfigurationSweep(
+				new String[]{"split threshold"},
+				new int[][]{{0, 8, 16, 32, 64, 128, 256, 1024, 4096}},
+				p -> new SlidingCompactingAllocator(p[0]));
+		long seed = new Random().nextLong();
+		sweep.run(SWEEP_RUNS, seed, Runtime.getRuntime().availableProcessors());
+		System.out.println(sweep);
+
+		ArenaAllocator.Routing[] routings = ArenaAllocator.Routing.values();
+		ConfigurationSweep arenas = new ConfigurationSweep(
+				new String[]{"arenas", "routing"},
+				new int[][]{{1, 2, 4, 8, 16}, {0, 1, 2}},
+				p -> new ArenaAllocator(p[0], routings[p[1]]));
+		arenas.run(SWEEP_RUNS, seed, Runtime.getRuntime().availableProcessors());
+		System.out.println(arenas);
+	}
+
+	/**
+	 * Number of runs per configuration during a sweep
+	 */
+	final static int SWEEP_RUNS = 50;
+
+	/**
+	 * Creates the cache model used if cache simulation is enabled:
+	 * 64 byte lines, 32 KiB 8-way L1, 256 KiB 8-way L2
+	 * @return New cache model
+	 */
+	static CacheSimulator createDefaultCache()
+	{
+		return new CacheSimulator(64, new int[]{32*1024, 256*1024}, new int[]{8, 8});
+	}
+
+	/**
+	 * Retrieves the value of a command line option
+	 * @param args Command line arguments
+	 * @param index Index of the value
+	 * @return Value
+	 */
+	private static String requireValue(String[] args, int index)
+	{
+		if (index >= args.length)
+			throw new IllegalArgumentException(args[index-1]+" requires a value");
+		return args[index];
+	}
+
+	/**
+	 * @param args the command line arguments.
+	 * --sweep: evaluates allocator configurations in parallel and reports
+	 * their Pareto front.
+	 * --cache: simulates CPU cache behavior of chunk and metadata accesses.
+	 * --seed &lt;n&gt;: base random seed. Random if not specified.
+	 * --checkpoint &lt;file&gt;: periodically writes the simulation state
+	 * to the specified file.
+	 * --resume: continues the simulation stored in the checkpoint file,
+	 * if it exists.
+	 * --baseline-write &lt;file&gt;: runs the regression suite and stores
+	 * its results as baseline.
+	 * --baseline-check &lt;file&gt;: runs the regression suite and compares
+	 * its results to the stored baseline. Exits with status 1 on regression.
+	 * --trace &lt;file&gt;: replays a recorded text or binary malloc trace
+	 * once, instead of the random workload. Disables automatic integrity
+	 * verification, which is quadratic in the number of live chunks.
+	 * --trace-convert &lt;text&gt; &lt;binary&gt;: converts a text trace to
+	 * the compact binary form.
+	 * --clients &lt;n&gt;: runs n concurrent clients against a shared,
+	 * synchronized instance of each allocator.
+	 * --series &lt;dir&gt;: records occupied bytes, fragmentation, and live
+	 * chunks over the operations of a run, and writes them as CSV files
+	 * to the specified directory.
+	 * --workers &lt;n&gt;: distributes the allocators across n forked JVMs
+	 * and merges their results. With more workers than allocators, the
+	 * additional workers repeat the simulation with different seeds.
+	 * --worker &lt;indices&gt;: internal. Simulates the allocators of the
+	 * specified comma-separated indices as directed by a coordinator over
+	 * the standard input and output. All text goes to the standard error
 	 * @throws java.lang.Exception
 	 */
 	public static void main(String[] args) throws Exception
 	{
 		SimulationState.setAutoVerify(true);
+
+		boolean sweep = false, resume = false;
+		int clients = 0, workers = 0;
+		int[] workerAllocators = null;
+		List<String> workerArgs = new ArrayList<>();
+		long seed = new Random().nextLong();
+		Path checkpoint = null, baselineWrite = null, baselineCheck = null,
+			trace = null, convertFrom = null, convertTo = null, seriesDir = null;
+		for (int a = 0; a < args.length; a++)
+			switch (args[a])
+			{
+				case "--sweep":
+					sweep = true;
+					break;
+				case "--cache":
+					SimulationState.setCacheSimulation(createDefaultCache());
+					workerArgs.add(args[a]);
+					break;
+				case "--seed":
+					seed = Long.parseLong(requireValue(args, ++a));
+					break;
+				case "--checkpoint":
+					checkpoint = Paths.get(requireValue(args, ++a));
+					break;
+				case "--resume":
+					resume = true;
+					break;
+				case "--baseline-write":
+					baselineWrite = Paths.get(requireValue(args, ++a));
+					break;
+				case "--baseline-check":
+					baselineCheck = Paths.get(requireValue(args, ++a));
+					break;
+				case "--trace":
+					trace = Paths.get(requireValue(args, ++a));
+					break;
+				case "--series":
+					seriesDir = Paths.get(requireValue(args, ++a));
+					SimulationState.setTimeSeries(TIME_SERIES_BUCKETS);
+					break;
+				case "--workers":
+					workers = Integer.parseInt(requireValue(args, ++a));
+					break;
+				case "--worker":
+					workerAllocators = ForkedWorkers.parseIndices(requireValue(args, ++a));
+					break;
+				case "--clients":
+					clients = Integer.parseInt(requireValue(args, ++a));
+					break;
+				case "--trace-convert":
+					convertFrom = Paths.get(requireValue(args, ++a));
+					convertTo = Paths.get(requireValue(args, ++a));
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown argument: "+args[a]);
+			}
+		if (resume && checkpoint == null)
+			throw new IllegalArgumentException("--resume requires --checkpoint <file>");
+		if (workers > 0 && (checkpoint != null || seriesDir != null || sweep || clients > 0 || trace != null
+				|| convertFrom != null || baselineWrite != null || baselineCheck != null))
+			throw new IllegalArgumentException("--workers can not be combined with --checkpoint, --series, --sweep,"
+					+" --clients, --trace, --trace-convert, or --baseline-*");
+
+		if (sweep)
+		{
+			runSweep();
+			return;
+		}
+		if (clients > 0)
+		{
+			ClientDriver driver = new ClientDriver(clients, CLIENT_REQUESTS, Math.max(2, Runtime.getRuntime().availableProcessors()));
+			System.out.println("Concurrent clients:");
+			for (Allocator allocator : createAllocators())
+				System.out.print(driver.run(allocator, seed));
+			return;
+		}
+		if (convertFrom != null)
+		{
+			TraceImporter importer = new TraceImporter();
+			importer.convert(convertFrom, convertTo);
+			System.out.println("Converted "+importer.getEvents()+" event(s) to "+convertTo
+					+" ("+importer.getSkipped()+" unmatched line(s) skipped)");
+			return;
+		}
+		if (trace != null)
+		{
+			SimulationState.setAutoVerify(false);
+			SimulationState state = new SimulationState(createAllocators());
+			TraceImporter importer = new TraceImporter();
+			importer.replay(trace, state);
+			state.endRun();
+			System.out.println("Replayed "+importer.getEvents()+" event(s) from "+trace
+					+" ("+importer.getSkipped()+" unmatched line(s) skipped)");
+			System.out.println(state);
+			if (seriesDir != null)
+				state.writeTimeSeries(seriesDir);
+			return;
+		}
+		if (baselineWrite != null || baselineCheck != null)
+		{
+			RegressionSuite current = RegressionSuite.measure(createAllocators());
+			if (baselineWrite != null)
+			{
+				current.write(baselineWrite);
+				System.out.println("Baseline written to "+baselineWrite);
+			}
+			if (baselineCheck != null)
+			{
+				StringBuilder report = new StringBuilder();
+				int regressions = current.compareTo(RegressionSuite.read(baselineCheck), report);
+				System.out.println("Regression check against "+baselineCheck+":");
+				System.out.print(report);
+				System.out.println(regressions+" regression(s)");
+				if (regressions > 0)
+					System.exit(1);
+			}
+			return;
+		}
+		if (workerAllocators != null)
+		{
+			//keep the standard output free for the binary protocol
+			PrintStream replies = System.out;
+			System.setOut(System.err);
+			ForkedWorkers.runWorker(workerAllocators, seed, System.in, replies);
+			return;
+		}
+		if (workers > 0)
+		{
+			ForkedWorkers coordinator = new ForkedWorkers(workers, seed, workerArgs);
+			ForkedWorkers.Result result = coordinator.run();
+			System.out.println("Executed in "+workers+" worker(s):");
+			System.out.print(coordinator.describe(result));
+			if (result.wallClockPerRun.isSet())
+				System.out.println("Wall-clock ms per run: "+result.wallClockPerRun);
+			System.out.println(result.state);
+			return;
+		}
 		
-		SimulationState state = 
-				new SimulationState(
-						new Allocator[]{
-								//your allocators here
-								new StackAllocator(), //remove
-								new NullAllocator(), //remove
-						}
-				);
-		Random random = new Random();
+		SimulationState state = new SimulationState(createAllocators());
+		int first = 0;
+		if (resume && Files.exists(checkpoint))
+		{
+			Checkpoint restored = Checkpoint.read(checkpoint, state);
+			seed = restored.seed;
+			first = restored.completedRuns;
+			System.out.println("Resuming after run "+first+" (seed "+seed+")");
+		}
 		
 		try
 		{
-			final int numRuns = 1000;
-			for (int j = 0; j < numRuns; j++)
-			{
-				try
-				{
-					for (int i = 0; i < 10000; i++)
-					{
-						int allocated = state.getCurrentlyAllocatedBytes();
-						if (allocated < FORCED_ALLOCATION_THRESHOLD || (random.nextBoolean() && allocated < ALLOCATE_UP_TO))
-							state.allocate(random.nextInt(256) * random.nextInt(256));
-						if (allocated >= ALLOCATE_UP_TO || (random.nextBoolean() && allocated > FORCED_ALLOCATION_THRESHOLD) )
-							state.freeRandom(random);
-					}
-				}
-				catch (SimulationState.AllAllocatorsHaveFaultedException ex)
-				{}
-				catch (Exception ex)
-				{
-					System.err.println(ex);
-				}
-				state.endRun();
-				if ( (j % (numRuns / 20)) == 0)
-					System.out.println(Math.round((double)j / numRuns*100)+"%");
-	//			System.out.flush();
-			}
+			simulate(state, seed, first, checkpoint, new Metric(false));
 		}
 		catch (Exception ex)
 		{
 			System.err.println(ex);
 		}
 		System.out.println(state);
+		if (seriesDir != null)
+			state.writeTimeSeries(seriesDir);
 	}
 	
 	
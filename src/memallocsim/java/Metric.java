@@ -5,6 +5,10 @@
  */
 package memallocsim.java;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  *
  * @author IronFox
@@ -104,6 +108,50 @@ public class Metric
 		return Math.sqrt(sqrMean - mean * mean);
 	}
 
+	/**
+	 * Calculates the half width of the confidence interval of the mean.
+	 * Uses the sample (n-1) deviation and the normal approximation, so
+	 * the result is only meaningful for a reasonable number of samples.
+	 * @param z Quantile of the standard normal distribution, e.g. 1.96 for
+	 * a 95% confidence interval
+	 * @return Half width of the interval (mean +- result).
+	 * Double.POSITIVE_INFINITY if less than two samples were recorded
+	 */
+	public double getConfidenceHalfWidth(double z)
+	{
+		if (count < 2)
+			return Double.POSITIVE_INFINITY;
+		return z * Math.sqrt(getSampleVariance()/count);
+	}
+
+	/**
+	 * Calculates the unbiased (n-1) sample variance of the local metric.
+	 * Returns 0 if less than two samples were recorded
+	 * @return Sample variance
+	 */
+	public double getSampleVariance()
+	{
+		if (count < 2)
+			return 0;
+		return Math.max((sqrSum - sum * sum / count) / (count - 1), 0);
+	}
+
+	/**
+	 * Checks whether the confidence interval of the mean is narrower than
+	 * the requested width, relative to the mean itself.
+	 * Percentage metrics are compared against their full scale (100%)
+	 * instead, since their mean is frequently close to 0
+	 * @param z Quantile of the standard normal distribution
+	 * @param relativeHalfWidth Maximum allowed half width, relative to
+	 * the absolute mean, or to the full scale of percentage metrics
+	 * @return true if the interval is narrow enough, false otherwise
+	 */
+	public boolean hasConverged(double z, double relativeHalfWidth)
+	{
+		double scale = percentage ? 1.0 : Math.abs(getMean());
+		return getConfidenceHalfWidth(z) <= relativeHalfWidth * scale;
+	}
+
 	/**
 	 * Retrieves the maximum included value. 
 	 * @return Maximum value. -Double.MAX_VALUE if empty
@@ -173,6 +221,37 @@ public class Metric
 		return rs.toString();
 	}
 
+	/**
+	 * Writes the local state to the specified output
+	 * @param out Output to write to
+	 * @throws IOException 
+	 */
+	public void writeTo(DataOutput out) throws IOException
+	{
+		out.writeBoolean(percentage);
+		out.writeInt(count);
+		out.writeDouble(sum);
+		out.writeDouble(sqrSum);
+		out.writeDouble(min);
+		out.writeDouble(max);
+	}
+
+	/**
+	 * Replaces the local state with the one read from the specified input
+	 * @param in Input previously written by writeTo()
+	 * @throws IOException if the stored metric is of a different kind
+	 */
+	public void readFrom(DataInput in) throws IOException
+	{
+		if (in.readBoolean() != percentage)
+			throw new IOException("Metric.readFrom() requires equal percentage states");
+		count = in.readInt();
+		sum = in.readDouble();
+		sqrSum = in.readDouble();
+		min = in.readDouble();
+		max = in.readDouble();
+	}
+
 	/**
 	 * Retrieves the number of values included in the local metric
 	 * @return Number of included values. 0 if empty
@@ -5,6 +5,12 @@
  */
 package memallocsim.java;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
 /**
  * Set of metrics used during statistical evaluation
  * @author IronFox
@@ -19,23 +25,191 @@ public class MetricSet
 	 * Execution steps spent on memory freeing
 	 */
 	public final Metric freeCost = new Metric(false);
+	/**
+	 * Execution steps spent on aligned memory allocation.
+	 * Aligned allocations are also included in allocationCost
+	 */
+	public final Metric alignedAllocationCost = new Metric(false);
+	/**
+	 * Execution steps spent on memory reallocation
+	 */
+	public final Metric reallocationCost = new Metric(false);
+	/**
+	 * Bytes copied per reallocation, because the chunk could not be
+	 * resized in place
+	 */
+	public final Metric reallocationCopiedBytes = new Metric(false);
+	/**
+	 * Relative amount of reallocations that were resolved in place
+	 */
+	public final Metric reallocationInPlace = new Metric(true);
 	
+	/**
+	 * Bytes moved by the allocator (e.g. due to compaction) per operation
+	 */
+	public final Metric relocatedBytes = new Metric(false);
+
+	/**
+	 * Execution steps spent per garbage collection
+	 */
+	public final Metric gcPauseCost = new Metric(false);
+	/**
+	 * Bytes moved per garbage collection
+	 */
+	public final Metric gcCopiedBytes = new Metric(false);
+	/**
+	 * Number of garbage collections per run
+	 */
+	public final Metric gcCollections = new Metric(false);
+
+	/**
+	 * Number of resident pages after each operation
+	 */
+	public final Metric residentPages = new Metric(false);
+	/**
+	 * Number of pages released by the allocator per run
+	 */
+	public final Metric releasedPages = new Metric(false);
+	/**
+	 * Number of released pages that became resident again, per run
+	 */
+	public final Metric refaultedPages = new Metric(false);
+
 	/**
 	 * Relative amount of memory lost due to internal fragmentation.
 	 * Effectively, Allocator.getInternalFragmentationBytes()/Allocator.getOccupiedMemoryBytes()
 	 */
 	public final Metric internalFragmentation = new Metric(true);
+	/**
+	 * Relative amount of memory lost due to alignment padding.
+	 * Included in internalFragmentation
+	 */
+	public final Metric alignmentPadding = new Metric(true);
 	
 	/**
 	 * Relative amount of memory unavailable due to external fragmentation
 	 */
 	public final Metric	externalFragmentation = new Metric(true);
 
+	/**
+	 * Relative amount of memory unavailable due to external fragmentation,
+	 * for requests of 2^k bytes, indexed by k
+	 */
+	public final Metric[] externalFragmentationCurve = new Metric[FreeBlockHistogram.MAX_BUCKET+1];
+	{
+		for (int k = 0; k < externalFragmentationCurve.length; k++)
+			externalFragmentationCurve[k] = new Metric(true);
+	}
+
+	/**
+	 * Relative amount of cache accesses that missed, per cache level.
+	 * One sample per run
+	 */
+	public final Metric[] cacheMissRate = new Metric[CacheSimulator.MAX_LEVELS];
+	{
+		for (int l = 0; l < cacheMissRate.length; l++)
+			cacheMissRate[l] = new Metric(true);
+	}
+	/**
+	 * Execution steps per allocation, free, or reallocation, attributed
+	 * to each step category. Indexed by Allocator.StepCategory.ordinal()
+	 */
+	public final Metric[] stepsByCategory = new Metric[Allocator.StepCategory.values().length];
+	{
+		for (int c = 0; c < stepsByCategory.length; c++)
+			stepsByCategory[c] = new Metric(false);
+	}
+
+	/**
+	 * All metrics of the local set, in a fixed order.
+	 * Must be declared after all metrics
+	 */
+	private final Metric[] all = collectAll();
+
+	private Metric[] collectAll()
+	{
+		ArrayList<Metric> rs = new ArrayList<>(Arrays.asList(
+				allocationCost, freeCost, alignedAllocationCost,
+				reallocationCost, reallocationCopiedBytes, reallocationInPlace,
+				relocatedBytes, gcPauseCost, gcCopiedBytes, gcCollections,
+				residentPages, releasedPages, refaultedPages,
+				internalFragmentation, alignmentPadding, externalFragmentation));
+		rs.addAll(Arrays.asList(externalFragmentationCurve));
+		rs.addAll(Arrays.asList(cacheMissRate));
+		rs.addAll(Arrays.asList(stepsByCategory));
+		return rs.toArray(new Metric[rs.size()]);
+	}
+
 	public void include(MetricSet other)
 	{
-		allocationCost.include(other.allocationCost);	
-		freeCost.include(other.freeCost);
-		internalFragmentation.include(other.internalFragmentation);
-		externalFragmentation.include(other.externalFragmentation);
+		for (int i = 0; i < all.length; i++)
+			all[i].include(other.all[i]);
+	}
+
+	/**
+	 * Writes all metrics to the specified output
+	 * @param out Output to write to
+	 * @throws IOException 
+	 */
+	public void writeTo(DataOutput out) throws IOException
+	{
+		out.writeInt(all.length);
+		for (Metric m : all)
+			m.writeTo(out);
+	}
+
+	/**
+	 * Replaces all metrics with the ones read from the specified input
+	 * @param in Input previously written by writeTo()
+	 * @throws IOException 
+	 */
+	public void readFrom(DataInput in) throws IOException
+	{
+		int n = in.readInt();
+		if (n != all.length)
+			throw new IOException("Expected "+all.length+" metrics, found "+n);
+		for (Metric m : all)
+			m.readFrom(in);
+	}
+
+	/**
+	 * Includes the mean of each key metric of the specified run as a
+	 * single sample.
+	 * Metrics that were not recorded during the run are skipped
+	 * @param run Metrics of a single completed run
+	 */
+	public void includeMeans(MetricSet run)
+	{
+		includeMean(allocationCost, run.allocationCost);
+		includeMean(freeCost, run.freeCost);
+		includeMean(internalFragmentation, run.internalFragmentation);
+		includeMean(externalFragmentation, run.externalFragmentation);
+	}
+
+	private static void includeMean(Metric target, Metric run)
+	{
+		if (run.isSet())
+			target.include(run.getMean());
+	}
+
+	/**
+	 * Checks whether all recorded key metrics have converged.
+	 * Metrics that were never recorded are ignored
+	 * @param z Quantile of the standard normal distribution
+	 * @param relativeHalfWidth Maximum allowed half width of the confidence
+	 * interval, relative to the respective mean
+	 * @return true if all recorded metrics are narrow enough
+	 */
+	public boolean hasConverged(double z, double relativeHalfWidth)
+	{
+		return hasConverged(allocationCost, z, relativeHalfWidth)
+				&& hasConverged(freeCost, z, relativeHalfWidth)
+				&& hasConverged(internalFragmentation, z, relativeHalfWidth)
+				&& hasConverged(externalFragmentation, z, relativeHalfWidth);
+	}
+
+	private static boolean hasConverged(Metric m, double z, double relativeHalfWidth)
+	{
+		return m.isEmpty() || m.hasConverged(z, relativeHalfWidth);
 	}
 }
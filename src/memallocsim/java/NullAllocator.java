@@ -34,6 +34,12 @@ public class NullAllocator implements Allocator
 		return 0;
 	}
 
+	@Override
+	public void fillFreeBlockHistogram(FreeBlockHistogram histogram)
+	{
+		histogram.clear();
+	}
+
 	@Override
 	public String toString()
 	{
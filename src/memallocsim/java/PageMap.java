@@ -0,0 +1,175 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package memallocsim.java;
+
+/**
+ * Page-granular residency state of the simulated address space.
+ * A page becomes resident once memory on it is written, and stays
+ * resident until the allocator releases it (similar to madvise(DONTNEED)).
+ * Residency is stored in a bitset. Pages holding parts of allocated chunks
+ * can not be released.
+ * @author IronFox
+ */
+public class PageMap
+{
+	/**
+	 * Size of a page in bytes
+	 */
+	public final static int PAGE_SIZE = 4096;
+	/**
+	 * Number of pages in [0,MEMORY_SIZE)
+	 */
+	public final static int NUM_PAGES = Allocator.MEMORY_SIZE / PAGE_SIZE;
+
+	private final long[] resident = new long[(NUM_PAGES + 63) / 64],
+						released = new long[(NUM_PAGES + 63) / 64];
+	/**
+	 * Number of allocated chunks overlapping each page
+	 */
+	private final int[] liveChunks = new int[NUM_PAGES];
+	private int residentPages = 0, releasedPages = 0, refaultedPages = 0;
+
+	/**
+	 * Resets all pages to non-resident and all counters to 0
+	 */
+	public void clear()
+	{
+		for (int i = 0; i < resident.length; i++)
+		{
+			resident[i] = 0;
+			released[i] = 0;
+		}
+		for (int i = 0; i < NUM_PAGES; i++)
+			liveChunks[i] = 0;
+		residentPages = 0;
+		releasedPages = 0;
+		refaultedPages = 0;
+	}
+
+	private static boolean get(long[] bits, int page)
+	{
+		return (bits[page >>> 6] & (1L << page)) != 0;
+	}
+
+	private static void set(long[] bits, int page)
+	{
+		bits[page >>> 6] |= 1L << page;
+	}
+
+	private static void unset(long[] bits, int page)
+	{
+		bits[page >>> 6] &= ~(1L << page);
+	}
+
+	private static int lastPage(int offset, int numBytes)
+	{
+		return (offset + numBytes - 1) / PAGE_SIZE;
+	}
+
+	/**
+	 * Marks all pages overlapping a byte range as resident
+	 * @param offset First byte of the range
+	 * @param numBytes Length of the range
+	 */
+	void touch(int offset, int numBytes)
+	{
+		if (numBytes <= 0)
+			return;
+		for (int p = offset / PAGE_SIZE; p <= lastPage(offset, numBytes); p++)
+			if (!get(resident, p))
+			{
+				set(resident, p);
+				residentPages++;
+				if (get(released, p))
+				{
+					unset(released, p);
+					refaultedPages++;
+				}
+			}
+	}
+
+	/**
+	 * Records an allocated chunk, pinning the pages it overlaps
+	 * @param chunk Allocated chunk
+	 */
+	void addLive(Allocator.MemoryChunk chunk)
+	{
+		if (chunk.byteSize <= 0)
+			return;
+		for (int p = chunk.byteOffset / PAGE_SIZE; p <= lastPage(chunk.byteOffset, chunk.byteSize); p++)
+			liveChunks[p]++;
+	}
+
+	/**
+	 * Removes an allocated chunk, unpinning the pages it overlaps
+	 * @param chunk Previously added chunk
+	 */
+	void removeLive(Allocator.MemoryChunk chunk)
+	{
+		if (chunk.byteSize <= 0)
+			return;
+		for (int p = chunk.byteOffset / PAGE_SIZE; p <= lastPage(chunk.byteOffset, chunk.byteSize); p++)
+			liveChunks[p]--;
+	}
+
+	/**
+	 * Releases all resident pages that lie entirely within the specified
+	 * free range. Partially covered pages are not affected.
+	 * @param offset First byte of the free range
+	 * @param numBytes Length of the free range
+	 * @return Number of pages that were released
+	 * @throws IllegalStateException if a page in the range is still
+	 * overlapped by an allocated chunk
+	 */
+	public int release(int offset, int numBytes) throws IllegalStateException
+	{
+		int first = (offset + PAGE_SIZE - 1) / PAGE_SIZE,
+			end = (offset + numBytes) / PAGE_SIZE;
+		int rs = 0;
+		for (int p = first; p < end; p++)
+		{
+			if (liveChunks[p] != 0)
+				throw new IllegalStateException("Page "+p+" is released, but overlapped by "+liveChunks[p]+" allocated chunk(s)");
+			if (get(resident, p))
+			{
+				unset(resident, p);
+				set(released, p);
+				residentPages--;
+				rs++;
+			}
+		}
+		releasedPages += rs;
+		return rs;
+	}
+
+	/**
+	 * Retrieves the number of currently resident pages
+	 * @return Page count
+	 */
+	public int countResidentPages()
+	{
+		return residentPages;
+	}
+
+	/**
+	 * Retrieves the number of pages released since the last clear()
+	 * @return Page count
+	 */
+	public int countReleasedPages()
+	{
+		return releasedPages;
+	}
+
+	/**
+	 * Retrieves the number of released pages that became resident again
+	 * since the last clear()
+	 * @return Page count
+	 */
+	public int countRefaultedPages()
+	{
+		return refaultedPages;
+	}
+}
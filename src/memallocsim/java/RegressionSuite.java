@@ -0,0 +1,250 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package memallocsim.java;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Performance regression check of all registered allocators.
+ * Executes a fixed set of seeded runs, so that unchanged allocators
+ * reproduce identical results, and compares the per-run means of the key
+ * metrics against a stored baseline using a one-sided Welch t-test.
+ * A metric regresses if it got significantly worse, and the difference
+ * exceeds a minimum effect size.
+ * @author IronFox
+ */
+public class RegressionSuite
+{
+	/**
+	 * Base random seed of the suite's workloads
+	 */
+	public final static long SEED = 0x5EED;
+	/**
+	 * Number of runs executed by the suite
+	 */
+	public final static int RUNS = 30;
+	/**
+	 * Quantile of the standard normal distribution of the one-sided test
+	 * (1% significance level)
+	 */
+	public final static double SIGNIFICANCE_Z = 2.326;
+	/**
+	 * Minimum increase of a cost metric, relative to the baseline mean,
+	 * to be reported as regression
+	 */
+	public final static double MIN_RELATIVE_EFFECT = 0.02;
+	/**
+	 * Minimum increase of a percentage metric, relative to its full scale,
+	 * to be reported as regression
+	 */
+	public final static double MIN_PERCENTAGE_EFFECT = 0.005;
+
+	/**
+	 * Summary of a single metric's per-run means
+	 */
+	public static class Sample
+	{
+		public final boolean percentage;
+		public final int count;
+		public final double mean, variance;
+
+		public Sample(boolean percentage, int count, double mean, double variance)
+		{
+			this.percentage = percentage;
+			this.count = count;
+			this.mean = mean;
+			this.variance = variance;
+		}
+
+		Sample(Metric m)
+		{
+			this(m.isPercentage(), m.countInclusions(), m.getMean(), m.getSampleVariance());
+		}
+	}
+
+	/**
+	 * Measured samples, keyed by allocator name and metric name, separated
+	 * by a tab
+	 */
+	private final Map<String, Sample> samples = new LinkedHashMap<>();
+
+	private static String key(String allocator, String metric)
+	{
+		return allocator + "\t" + metric;
+	}
+
+	/**
+	 * Executes the suite's workloads on the specified allocators
+	 * @param allocators Allocators to measure
+	 * @return Measured samples
+	 * @throws Exception
+	 */
+	public static RegressionSuite measure(Allocator[] allocators) throws Exception
+	{
+		SimulationState state = new SimulationState(allocators);
+		for (int r = 0; r < RUNS; r++)
+			MemAllocSimJava.executeRun(state, new Random(MemAllocSimJava.runSeed(SEED, r)));
+		RegressionSuite rs = new RegressionSuite();
+		for (int i = 0; i < state.countAllocators(); i++)
+		{
+			AllocatorStateTracker alloc = state.getAllocatorState(i);
+			MetricSet means = alloc.getRunMeans();
+			String name = alloc.getAllocatorName();
+			rs.samples.put(key(name, "allocation cost"), new Sample(means.allocationCost));
+			rs.samples.put(key(name, "free cost"), new Sample(means.freeCost));
+			rs.samples.put(key(name, "internal fragmentation"), new Sample(means.internalFragmentation));
+			rs.samples.put(key(name, "external fragmentation"), new Sample(means.externalFragmentation));
+		}
+		return rs;
+	}
+
+	/**
+	 * Writes the local samples as baseline.
+	 * One line per metric: allocator, metric, percentage flag, count, mean,
+	 * and variance, separated by tabs
+	 * @param file File to write to
+	 * @throws IOException
+	 */
+	public void write(Path file) throws IOException
+	{
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file)))
+		{
+			out.println("# MemAllocSim baseline: "+RUNS+" runs, seed "+SEED);
+			for (Map.Entry<String, Sample> e : samples.entrySet())
+			{
+				Sample s = e.getValue();
+				out.println(e.getKey()+"\t"+s.percentage+"\t"+s.count+"\t"+Double.toString(s.mean)+"\t"+Double.toString(s.variance));
+			}
+		}
+	}
+
+	/**
+	 * Reads a baseline previously written by write()
+	 * @param file File to read from
+	 * @return Stored samples
+	 * @throws IOException if the file is malformed
+	 */
+	public static RegressionSuite read(Path file) throws IOException
+	{
+		RegressionSuite rs = new RegressionSuite();
+		try (BufferedReader in = Files.newBufferedReader(file))
+		{
+			String line;
+			int lineNumber = 0;
+			while ((line = in.readLine()) != null)
+			{
+				lineNumber++;
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				String[] parts = line.split("\t");
+				if (parts.length != 6)
+					throw new IOException(file+":"+lineNumber+": expected 6 tab-separated fields, found "+parts.length);
+				try
+				{
+					rs.samples.put(key(parts[0], parts[1]), new Sample(
+							Boolean.parseBoolean(parts[2]),
+							Integer.parseInt(parts[3]),
+							Double.parseDouble(parts[4]),
+							Double.parseDouble(parts[5])));
+				}
+				catch (NumberFormatException ex)
+				{
+					throw new IOException(file+":"+lineNumber+": "+ex.getMessage());
+				}
+			}
+		}
+		return rs;
+	}
+
+	/**
+	 * Approximates the quantile of Student's t distribution for the
+	 * quantile z of the standard normal distribution (Cornish-Fisher
+	 * expansion)
+	 */
+	private static double tQuantile(double z, double degreesOfFreedom)
+	{
+		double z3 = z*z*z, z5 = z3*z*z;
+		return z + (z3 + z) / (4 * degreesOfFreedom)
+				+ (5*z5 + 16*z3 + 3*z) / (96 * degreesOfFreedom * degreesOfFreedom);
+	}
+
+	/**
+	 * Checks whether the current sample is significantly and relevantly
+	 * worse (greater) than the baseline sample
+	 */
+	private static boolean regressed(Sample base, Sample current)
+	{
+		double diff = current.mean - base.mean;
+		double minEffect = current.percentage ? MIN_PERCENTAGE_EFFECT : MIN_RELATIVE_EFFECT * Math.abs(base.mean);
+		if (diff <= minEffect)
+			return false;
+		double vb = base.variance / base.count, vc = current.variance / current.count;
+		double se = Math.sqrt(vb + vc);
+		if (se == 0)
+			return true;
+		double df = (vb + vc) * (vb + vc)
+				/ (vb*vb / Math.max(base.count-1, 1) + vc*vc / Math.max(current.count-1, 1));
+		return diff / se > tQuantile(SIGNIFICANCE_Z, df);
+	}
+
+	private static String format(Sample s)
+	{
+		if (s.percentage)
+			return (double)Math.round(s.mean*10000)/100+"%";
+		return Double.toString((double)Math.round(s.mean*100)/100);
+	}
+
+	/**
+	 * Compares the local samples against a baseline
+	 * @param baseline Baseline to compare against
+	 * @param report Receives one line per compared metric
+	 * @return Number of regressed metrics
+	 */
+	public int compareTo(RegressionSuite baseline, StringBuilder report)
+	{
+		int regressions = 0;
+		for (Map.Entry<String, Sample> e : samples.entrySet())
+		{
+			Sample current = e.getValue();
+			Sample base = baseline.samples.get(e.getKey());
+			report.append("  ").append(e.getKey().replace('\t', ' ')).append(": ");
+			if (base == null)
+			{
+				report.append(format(current)).append(" (no baseline)\n");
+				continue;
+			}
+			if (base.count == 0)
+			{
+				report.append("no baseline runs without fault\n");
+				continue;
+			}
+			if (current.count == 0)
+			{
+				report.append("REGRESSION: faulted in all runs, baseline ").append(format(base)).append("\n");
+				regressions++;
+				continue;
+			}
+			report.append(format(base)).append(" -> ").append(format(current));
+			if (regressed(base, current))
+			{
+				report.append(" REGRESSION");
+				regressions++;
+			}
+			report.append("\n");
+		}
+		for (String k : baseline.samples.keySet())
+			if (!samples.containsKey(k))
+				report.append("  ").append(k.replace('\t', ' ')).append(": no longer measured\n");
+		return regressions;
+	}
+}
@@ -5,6 +5,12 @@
  */
 package memallocsim.java;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Random;
 
 /**
@@ -34,6 +40,18 @@ public final class SimulationState
 				mostAllocatedChunks = 0, numAllocated = 0;
 
 	private final Metric bytesPerAllocation = new Metric(false);
+	/**
+	 * Values of the current run, included by endRun()
+	 */
+	private Metric runBytesPerAllocation = new Metric(false);
+	private int runMostBytesAllocated = 0, runMostAllocatedChunks = 0;
+
+	private int[] batchSizes = new int[16], batchIndices = new int[16];
+	/**
+	 * Requested size of each allocated chunk, in the same order as the
+	 * chunks recorded by the trackers
+	 */
+	private int[] requestedSizes = new int[256];
 
 
 	/**
@@ -65,11 +83,68 @@ public final class SimulationState
 	}
 
 
+	private static CacheSimulator cacheTemplate = null;
+
+	/**
+	 * Enables cache simulation for all subsequently created states.
+	 * Each allocator receives its own empty copy of the specified model
+	 * @param template Cache configuration. Null to disable
+	 */
+	public static void setCacheSimulation(CacheSimulator template)
+	{
+		cacheTemplate = template;
+	}
+
+	private static int timeSeriesCapacity = 0;
+
+	/**
+	 * Enables time series recording for all subsequently created states
+	 * @param capacity Number of buckets per series. 0 to disable
+	 */
+	public static void setTimeSeries(int capacity)
+	{
+		timeSeriesCapacity = capacity;
+	}
+
 	public int getCurrentlyAllocatedBytes()
 	{
 		return currentlyAllocatedBytes;
 	}
 
+	/**
+	 * Retrieves the number of currently allocated chunks
+	 * @return Chunk count
+	 */
+	public int getNumAllocatedChunks()
+	{
+		return numAllocated;
+	}
+
+	/**
+	 * Retrieves the size originally requested for a specific chunk
+	 * @param index Index of the chunk in [0,getNumAllocatedChunks())
+	 * @return Requested size in bytes
+	 */
+	public int getRequestedSize(int index)
+	{
+		return requestedSizes[index];
+	}
+
+	private void pushRequestedSize(int numBytes)
+	{
+		if (numAllocated == requestedSizes.length)
+			requestedSizes = Arrays.copyOf(requestedSizes, requestedSizes.length*2);
+		requestedSizes[numAllocated++] = numBytes;
+	}
+
+	private int removeRequestedSize(int index)
+	{
+		int rs = requestedSizes[index];
+		System.arraycopy(requestedSizes, index+1, requestedSizes, index, numAllocated - index - 1);
+		numAllocated--;
+		return rs;
+	}
+
 	public int getMostSimultaneouslyAllocatedChunks()
 	{
 		return mostAllocatedChunks;
@@ -89,12 +164,38 @@ public final class SimulationState
 	{
 		allocators = new AllocatorStateTracker[s.length];
 		for (int i = 0; i < s.length; i++)
+		{
 			allocators[i] = new AllocatorStateTracker(s[i]);
+			if (cacheTemplate != null)
+				allocators[i].enableCacheSimulation(cacheTemplate.createNew());
+			if (timeSeriesCapacity > 0)
+				allocators[i].enableTimeSeries(timeSeriesCapacity);
+		}
 
 		if (autoVerify)
 			verifyIntegrity();
 	}
 
+	/**
+	 * Retrieves the number of simulated allocators
+	 * @return Allocator count
+	 */
+	public int countAllocators()
+	{
+		return allocators.length;
+	}
+
+	/**
+	 * Retrieves the recorded state of a specific allocator
+	 * @param index Index of the allocator in the array passed to the
+	 * constructor
+	 * @return Allocator state
+	 */
+	public AllocatorStateTracker getAllocatorState(int index)
+	{
+		return allocators[index];
+	}
+
 	public boolean allFaulted()
 	{
 		for (AllocatorStateTracker alloc : allocators)
@@ -104,29 +205,167 @@ public final class SimulationState
 
 	}
 
+	/**
+	 * Checks whether the per-run metrics of all local allocators have
+	 * converged to the requested confidence interval width
+	 * @param z Quantile of the standard normal distribution, e.g. 1.96 for
+	 * a 95% confidence interval
+	 * @param relativeHalfWidth Maximum allowed half width of the confidence
+	 * interval, relative to the respective mean
+	 * @return true if all allocators have converged
+	 */
+	public boolean hasConverged(double z, double relativeHalfWidth)
+	{
+		for (AllocatorStateTracker alloc : allocators)
+			if (!alloc.hasConverged(z, relativeHalfWidth))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Sets the simulated owner (e.g. thread) of subsequent instructions on
+	 * all local allocators
+	 * @param owner Owner index, non-negative
+	 */
+	public void setOwner(int owner)
+	{
+		for (AllocatorStateTracker alloc : allocators)
+			alloc.setOwner(owner);
+	}
+
 	/**
 	 * Executes an allocation instruction on all local allocators
 	 * @param numBytes Bytes to allocate
 	 * @throws Exception 
 	 */
 	public void allocate(int numBytes) throws Exception
+	{
+		allocate(numBytes, 1);
+	}
+
+	/**
+	 * Executes an aligned allocation instruction on all local allocators
+	 * @param numBytes Bytes to allocate
+	 * @param alignment Alignment of the allocated address in bytes.
+	 * Must be a power of two
+	 * @throws Exception 
+	 */
+	public void allocate(int numBytes, int alignment) throws Exception
 	{
 		if (allFaulted())
 			throw new AllAllocatorsHaveFaultedException();
 		if (numBytes <= 0)
 			return;
-		bytesPerAllocation.include(numBytes);
+		runBytesPerAllocation.include(numBytes);
 
 		for (AllocatorStateTracker alloc : allocators)
-			alloc.allocate(numBytes, numAllocated+1);
-		numAllocated++;
+			alloc.allocate(numBytes, alignment, numAllocated+1);
+		pushRequestedSize(numBytes);
 		currentlyAllocatedBytes += numBytes;
-		mostAllocatedChunks = Math.max(mostAllocatedChunks,numAllocated);
-		mostBytesAllocated = Math.max(mostBytesAllocated, currentlyAllocatedBytes);
+		runMostAllocatedChunks = Math.max(runMostAllocatedChunks, numAllocated);
+		runMostBytesAllocated = Math.max(runMostBytesAllocated, currentlyAllocatedBytes);
 		if (autoVerify)
 			verifyIntegrity();
 	}
 
+	/**
+	 * Executes a batched allocation instruction on all local allocators.
+	 * Requests of zero or fewer bytes are skipped
+	 * @param sizes Bytes to allocate per chunk
+	 * @param count Number of requests in sizes to process
+	 * @throws Exception 
+	 */
+	public void allocateBatch(int[] sizes, int count) throws Exception
+	{
+		if (allFaulted())
+			throw new AllAllocatorsHaveFaultedException();
+		if (batchSizes.length < count)
+			batchSizes = new int[count];
+		int n = 0, bytes = 0;
+		for (int i = 0; i < count; i++)
+			if (sizes[i] > 0)
+			{
+				batchSizes[n++] = sizes[i];
+				bytes += sizes[i];
+				runBytesPerAllocation.include(sizes[i]);
+			}
+		if (n == 0)
+			return;
+
+		for (AllocatorStateTracker alloc : allocators)
+			alloc.allocateBatch(batchSizes, n, numAllocated+n);
+		for (int i = 0; i < n; i++)
+			pushRequestedSize(batchSizes[i]);
+		currentlyAllocatedBytes += bytes;
+		runMostAllocatedChunks = Math.max(runMostAllocatedChunks, numAllocated);
+		runMostBytesAllocated = Math.max(runMostBytesAllocated, currentlyAllocatedBytes);
+		if (autoVerify)
+			verifyIntegrity();
+	}
+
+	/**
+	 * Frees a batch of distinct random chunks from all local allocators.
+	 * The same chunks are removed from all allocators, to keep them in sync
+	 * @param rng Random source to use for the indices
+	 * @param count Number of chunks to free. Clamped to the number of
+	 * currently allocated chunks
+	 * @throws Exception 
+	 */
+	public void freeRandomBatch(Random rng, int count) throws Exception
+	{
+		count = Math.min(count, numAllocated);
+		if (count == 0)
+			return;
+		if (batchIndices.length < count)
+			batchIndices = new int[count];
+		int n = 0;
+		while (n < count)
+		{
+			int at = rng.nextInt(numAllocated);
+			boolean taken = false;
+			for (int i = 0; i < n && !taken; i++)
+				taken = batchIndices[i] == at;
+			if (!taken)
+				batchIndices[n++] = at;
+		}
+		Arrays.sort(batchIndices, 0, n);
+		for (int i = 0, j = n-1; i < j; i++, j--)
+		{
+			int t = batchIndices[i];
+			batchIndices[i] = batchIndices[j];
+			batchIndices[j] = t;
+		}
+		freeBatch(batchIndices, n);
+	}
+
+	/**
+	 * Frees the specified chunks from all local allocators
+	 * @param indices Indices of the chunks to remove. Must be distinct and
+	 * sorted in descending order
+	 * @param count Number of indices to process
+	 * @return true if the chunks were freed by at least one allocator
+	 * @throws Exception 
+	 */
+	public boolean freeBatch(int[] indices, int count) throws Exception
+	{
+		int size = 0;
+		for (AllocatorStateTracker alloc : allocators)
+		{
+			int s = alloc.freeBatch(indices, count, numAllocated);
+			if (s != 0)
+			{
+				size = s;
+			}
+		}
+		if (size == 0)
+			return false;
+		for (int i = 0; i < count; i++)
+			currentlyAllocatedBytes -= removeRequestedSize(indices[i]);
+		if (autoVerify)
+			verifyIntegrity();
+		return true;
+	}
+
 	/**
 	 * Frees a random chunk from all local allocators.
 	 * The same chunk is removed from all allocates, to keep them in sync
@@ -159,25 +398,214 @@ public final class SimulationState
 		}
 		if (size == 0)
 			return false;
-		currentlyAllocatedBytes -= size;
-		numAllocated--;
+		currentlyAllocatedBytes -= removeRequestedSize(index);
 		if (autoVerify)
 			verifyIntegrity();
 		return true;
 	}
 
+	/**
+	 * Frees a specified chunk from all local allocators, without
+	 * preserving the order of the remaining chunks.
+	 * The last chunk takes over the index of the freed one, so no other
+	 * index changes, and no chunks need to be shifted
+	 * @param index Index of the chunk to remove
+	 * @return true if the chunk was freed by at least one allocator
+	 * @throws Exception 
+	 */
+	public boolean freeUnordered(int index) throws Exception
+	{
+		int last = numAllocated - 1;
+		if (index != last)
+		{
+			for (AllocatorStateTracker alloc : allocators)
+				alloc.swapChunks(index, last);
+			int t = requestedSizes[index];
+			requestedSizes[index] = requestedSizes[last];
+			requestedSizes[last] = t;
+		}
+		return free(last);
+	}
+
+	/**
+	 * Resizes a specified chunk in all local allocators
+	 * @param index Index of the chunk to resize
+	 * @param newSize New size of the chunk in bytes. Requests of zero or
+	 * fewer bytes are skipped
+	 * @throws Exception 
+	 */
+	public void reallocate(int index, int newSize) throws Exception
+	{
+		if (allFaulted())
+			throw new AllAllocatorsHaveFaultedException();
+		if (newSize <= 0)
+			return;
+		for (AllocatorStateTracker alloc : allocators)
+			alloc.reallocate(index, newSize, numAllocated);
+		currentlyAllocatedBytes += newSize - requestedSizes[index];
+		requestedSizes[index] = newSize;
+		runMostBytesAllocated = Math.max(runMostBytesAllocated, currentlyAllocatedBytes);
+		if (autoVerify)
+			verifyIntegrity();
+	}
+
+	/**
+	 * Grows a random chunk in all local allocators.
+	 * The same chunk is resized in all allocators, to keep them in sync
+	 * @param rng Random source to use for the index
+	 * @param factor Factor to grow the chunk by. The chunk grows by at least
+	 * one byte
+	 * @throws Exception 
+	 */
+	public void growRandom(Random rng, double factor) throws Exception
+	{
+		if (numAllocated == 0)
+			return;
+		int at = rng.nextInt(numAllocated);
+		int size = requestedSizes[at];
+		reallocate(at, Math.max(size+1, (int)(size * factor)));
+	}
+
+	/**
+	 * Simulates random accesses to allocated chunks in all local allocators.
+	 * The same chunks and relative offsets are accessed in all allocators.
+	 * Only has an effect if cache simulation is enabled, but always
+	 * consumes the same random numbers
+	 * @param rng Random source to use for the chunks and offsets
+	 * @param count Number of accesses
+	 */
+	public void accessRandom(Random rng, int count)
+	{
+		if (numAllocated == 0)
+			return;
+		for (int i = 0; i < count; i++)
+		{
+			int at = rng.nextInt(numAllocated);
+			int offset = rng.nextInt(requestedSizes[at]);
+			for (AllocatorStateTracker alloc : allocators)
+				alloc.access(at, offset);
+		}
+	}
+
 	/**
 	 * Frees all currently allocated chunks
 	 * @throws Exception 
 	 */
 	public void endRun() throws Exception
 	{
+		endRun(true);
+	}
+
+	/**
+	 * Frees all currently allocated chunks
+	 * @param include True to include the run in the metrics of all
+	 * allocators. False to discard it, e.g. during warm-up
+	 * @throws Exception 
+	 */
+	public void endRun(boolean include) throws Exception
+	{
+		if (include)
+		{
+			bytesPerAllocation.include(runBytesPerAllocation);
+			mostAllocatedChunks = Math.max(mostAllocatedChunks, runMostAllocatedChunks);
+			mostBytesAllocated = Math.max(mostBytesAllocated, runMostBytesAllocated);
+		}
+		runBytesPerAllocation = new Metric(false);
+		runMostAllocatedChunks = 0;
+		runMostBytesAllocated = 0;
 		currentlyAllocatedBytes = 0;
 		numAllocated = 0;
 		for (AllocatorStateTracker alloc : allocators)
-			alloc.endRun();
+			alloc.endRun(include);
 	}
 
+	/**
+	 * Writes all metrics accumulated over completed runs.
+	 * Must be called between runs
+	 * @param out Output to write to
+	 * @throws IOException 
+	 */
+	public void writeTo(DataOutput out) throws IOException
+	{
+		out.writeInt(allocators.length);
+		for (AllocatorStateTracker alloc : allocators)
+			alloc.writeTo(out);
+		bytesPerAllocation.writeTo(out);
+		out.writeInt(mostAllocatedChunks);
+		out.writeInt(mostBytesAllocated);
+	}
+
+	/**
+	 * Replaces all metrics accumulated over completed runs with the ones
+	 * read from the specified input.
+	 * Must be called between runs
+	 * @param in Input previously written by writeTo()
+	 * @throws IOException if the input was written for different allocators
+	 */
+	public void readFrom(DataInput in) throws IOException
+	{
+		int n = in.readInt();
+		if (n != allocators.length)
+			throw new IOException("Expected state of "+allocators.length+" allocator(s), found "+n);
+		for (AllocatorStateTracker alloc : allocators)
+			alloc.readFrom(in);
+		bytesPerAllocation.readFrom(in);
+		mostAllocatedChunks = in.readInt();
+		mostBytesAllocated = in.readInt();
+	}
+
+	/**
+	 * Includes the metrics accumulated by another state.
+	 * Each allocator of the other state is merged into the allocator of
+	 * the same name.
+	 * Must be called between runs
+	 * @param other State to include. May cover a subset of the local
+	 * allocators
+	 * @param includeWorkload True to also include the workload metrics
+	 * (allocation sizes, most simultaneously allocated chunks/bytes).
+	 * Should be false if the workload was already included from another
+	 * state running the same runs
+	 * @throws IllegalArgumentException if the other state has an allocator
+	 * missing locally
+	 */
+	public void include(SimulationState other, boolean includeWorkload)
+	{
+		for (AllocatorStateTracker o : other.allocators)
+		{
+			AllocatorStateTracker target = null;
+			for (AllocatorStateTracker alloc : allocators)
+				if (alloc.getAllocatorName().equals(o.getAllocatorName()))
+					target = alloc;
+			if (target == null)
+				throw new IllegalArgumentException("No local allocator "+o.getAllocatorName());
+			target.include(o);
+		}
+		if (includeWorkload)
+		{
+			bytesPerAllocation.include(other.bytesPerAllocation);
+			mostAllocatedChunks = Math.max(mostAllocatedChunks, other.mostAllocatedChunks);
+			mostBytesAllocated = Math.max(mostBytesAllocated, other.mostBytesAllocated);
+		}
+	}
+
+	/**
+	 * Writes the time series of each allocator to a separate CSV file.
+	 * Does nothing if time series recording is disabled
+	 * @param directory Directory to write to. Created if missing
+	 * @throws IOException 
+	 */
+	public void writeTimeSeries(Path directory) throws IOException
+	{
+		Files.createDirectories(directory);
+		for (int i = 0; i < allocators.length; i++)
+		{
+			TimeSeries[] series = allocators[i].getTimeSeries();
+			if (series == null)
+				continue;
+			String name = allocators[i].getAllocatorName().replaceAll("[^A-Za-z0-9.-]+", "_");
+			TimeSeries.writeCsv(directory.resolve(i+"_"+name+".csv"), series);
+		}
+	}
 
 	/**
 	 * Thoroughly checks if the current state is valid.
@@ -0,0 +1,337 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package memallocsim.java;
+
+import java.util.ArrayList;
+
+/**
+ * First-fit allocator that slides all live chunks towards address 0
+ * whenever a request can not be served from any single gap, but would fit
+ * into the total amount of free memory.
+ * Moved chunks are reported through the relocation listener.
+ * @author IronFox
+ */
+public class SlidingCompactingAllocator implements Allocator
+{
+	/**
+	 * Number of bytes copied per step when a chunk is moved
+	 */
+	public final static int COPY_BYTES_PER_STEP = 8;
+
+	/**
+	 * Gaps smaller than this remaining after a placement are merged into
+	 * the placed chunk (as internal fragmentation), rather than left free
+	 */
+	private final int splitThreshold;
+
+	/**
+	 * Live chunk that remembers the gap remainder merged into it
+	 */
+	private final static class PlacedChunk extends MemoryChunk
+	{
+		final int absorbedBytes;
+
+		PlacedChunk(int byteOffset, int byteSize, int alignment, int paddingBytes, int absorbedBytes)
+		{
+			super(byteOffset, byteSize, alignment, paddingBytes);
+			this.absorbedBytes = absorbedBytes;
+		}
+	}
+
+	/**
+	 * Live chunks, ordered by byteOffset
+	 */
+	private final ArrayList<MemoryChunk> live = new ArrayList<>();
+	private int occupied = 0;
+	/**
+	 * Sum of PlacedChunk.absorbedBytes of all live chunks
+	 */
+	private int absorbed = 0;
+	private RelocationListener listener;
+	private PageMap pages;
+
+	private int foundOffset, foundEnd;
+
+	public SlidingCompactingAllocator()
+	{
+		this(16);
+	}
+
+	public SlidingCompactingAllocator(int splitThreshold)
+	{
+		this.splitThreshold = splitThreshold;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "SlidingCompacting(split<"+splitThreshold+")";
+	}
+
+	private static int alignUp(int offset, int alignment)
+	{
+		return (offset + alignment - 1) & ~(alignment - 1);
+	}
+
+	/**
+	 * Searches the first gap that can hold the requested chunk.
+	 * On success, foundOffset and foundEnd describe the usable placement
+	 * and the end of the gap
+	 * @return Index in live to insert the chunk at, or -1 if no gap fits
+	 */
+	private int findGap(int numBytes, int alignment, StepCounter counter)
+	{
+		int cursor = 0;
+		for (int i = 0; i <= live.size(); i++)
+		{
+			counter.inc(StepCategory.SEARCH);
+			int gapEnd = i < live.size() ? live.get(i).byteOffset : MEMORY_SIZE;
+			int start = alignUp(cursor, alignment);
+			if (start + numBytes <= gapEnd)
+			{
+				foundOffset = start;
+				foundEnd = gapEnd;
+				return i;
+			}
+			if (i < live.size())
+			{
+				counter.touch(gapEnd);
+				cursor = live.get(i).getEnd();
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Inserts a new chunk at the location found by the last findGap()
+	 */
+	private MemoryChunk place(int index, int numBytes, int alignment, int leadingPadding)
+	{
+		int remainder = foundEnd - foundOffset - numBytes;
+		int merged = remainder < splitThreshold ? remainder : 0;
+		PlacedChunk rs = new PlacedChunk(foundOffset - leadingPadding, leadingPadding + numBytes + merged, alignment, leadingPadding, merged);
+		insert(index, rs);
+		return rs;
+	}
+
+	private void insert(int index, MemoryChunk chunk)
+	{
+		live.add(index, chunk);
+		occupied += chunk.byteSize;
+		absorbed += ((PlacedChunk)chunk).absorbedBytes;
+	}
+
+	private MemoryChunk remove(int index)
+	{
+		MemoryChunk rs = live.remove(index);
+		occupied -= rs.byteSize;
+		absorbed -= ((PlacedChunk)rs).absorbedBytes;
+		return rs;
+	}
+
+	/**
+	 * Slides all live chunks towards address 0, preserving their order
+	 * and alignment
+	 */
+	private void compact(StepCounter counter)
+	{
+		int cursor = 0;
+		for (int i = 0; i < live.size(); i++)
+		{
+			counter.inc(StepCategory.COALESCE);
+			MemoryChunk c = live.get(i);
+			int dest = cursor;
+			if (alignUp(dest, c.alignment) - dest > c.paddingBytes)
+				dest = alignUp(dest, c.alignment);
+			if (dest != c.byteOffset)
+			{
+				MemoryChunk moved = new PlacedChunk(dest, c.byteSize, c.alignment, c.paddingBytes, ((PlacedChunk)c).absorbedBytes);
+				live.set(i, moved);
+				counter.add(StepCategory.COPY, c.byteSize / COPY_BYTES_PER_STEP);
+				if (listener != null)
+					listener.relocated(c, moved);
+			}
+			cursor = dest + c.byteSize;
+		}
+		releasePages(cursor, MEMORY_SIZE, counter);
+	}
+
+	/**
+	 * Releases the pages of a free range, if it covers at least one page
+	 */
+	private void releasePages(int start, int end, StepCounter counter)
+	{
+		if (pages == null || end - start < PageMap.PAGE_SIZE)
+			return;
+		counter.inc(StepCategory.METADATA);
+		pages.release(start, end - start);
+	}
+
+	private MemoryChunk allocate(int numBytes, int alignment, StepCounter counter)
+	{
+		if (numBytes <= 0)
+			return null;
+		int at = findGap(numBytes, alignment, counter);
+		if (at < 0)
+		{
+			if (MEMORY_SIZE - occupied < numBytes)
+				return null;
+			compact(counter);
+			at = findGap(numBytes, alignment, counter);
+			if (at < 0)
+				return null;
+		}
+		return place(at, numBytes, alignment, 0);
+	}
+
+	@Override
+	public MemoryChunk allocate(int numBytes, StepCounter counter)
+	{
+		return allocate(numBytes, 1, counter);
+	}
+
+	@Override
+	public MemoryChunk allocateAligned(int numBytes, int alignment, StepCounter counter)
+	{
+		return allocate(numBytes, alignment, counter);
+	}
+
+	/**
+	 * Locates a live chunk via binary search
+	 * @return Index of the chunk in live
+	 */
+	private int indexOf(MemoryChunk chunk, StepCounter counter)
+	{
+		int lower = 0, upper = live.size()-1;
+		while (lower <= upper)
+		{
+			counter.inc(StepCategory.SEARCH);
+			int mid = (lower + upper) >>> 1;
+			MemoryChunk c = live.get(mid);
+			counter.touch(c.byteOffset);
+			if (c.byteOffset < chunk.byteOffset)
+				lower = mid+1;
+			else if (c.byteOffset > chunk.byteOffset)
+				upper = mid-1;
+			else if (c.equals(chunk))
+				return mid;
+			else
+				break;
+		}
+		throw new IllegalArgumentException(this+": chunk "+chunk+" is not allocated");
+	}
+
+	@Override
+	public void free(MemoryChunk chunk, StepCounter counter)
+	{
+		if (chunk == null)
+			return;
+		int at = indexOf(chunk, counter);
+		remove(at);
+		releasePages(at > 0 ? live.get(at-1).getEnd() : 0,
+					at < live.size() ? live.get(at).byteOffset : MEMORY_SIZE,
+					counter);
+	}
+
+	@Override
+	public MemoryChunk reallocate(MemoryChunk chunk, int newSize, StepCounter counter)
+	{
+		if (newSize <= 0)
+			return null;
+		int at = indexOf(chunk, counter);
+		int leading = chunk.getAlignedOffset() - chunk.byteOffset;
+		int end = at+1 < live.size() ? live.get(at+1).byteOffset : MEMORY_SIZE;
+		if (chunk.getAlignedOffset() + newSize <= end)
+		{
+			//resize in place
+			remove(at);
+			foundOffset = chunk.getAlignedOffset();
+			foundEnd = end;
+			return place(at, newSize, chunk.alignment, leading);
+		}
+		MemoryChunk original = remove(at);
+		int newAt = findGap(newSize, chunk.alignment, counter);
+		if (newAt < 0 && MEMORY_SIZE - occupied >= newSize)
+		{
+			//compact with the chunk in place, so that its contents move too
+			insert(at, original);
+			compact(counter);
+			MemoryChunk current = remove(at);
+			newAt = findGap(newSize, chunk.alignment, counter);
+			if (newAt < 0)
+			{
+				insert(at, current);
+				return null;
+			}
+		}
+		else if (newAt < 0)
+		{
+			insert(at, original);
+			return null;
+		}
+		counter.add(StepCategory.COPY, Math.min(chunk.byteSize, newSize) / COPY_BYTES_PER_STEP);
+		return place(newAt, newSize, chunk.alignment, 0);
+	}
+
+	@Override
+	public void setRelocationListener(RelocationListener listener)
+	{
+		this.listener = listener;
+	}
+
+	@Override
+	public void setPageMap(PageMap pages)
+	{
+		this.pages = pages;
+	}
+
+	@Override
+	public int getInternalFragmentationBytes()
+	{
+		return absorbed;
+	}
+
+	@Override
+	public int getExternalFragmentationBytes(int allocRequestBytes)
+	{
+		int rs = 0, cursor = 0;
+		for (int i = 0; i <= live.size(); i++)
+		{
+			int gapEnd = i < live.size() ? live.get(i).byteOffset : MEMORY_SIZE;
+			if (gapEnd - cursor < allocRequestBytes)
+				rs += gapEnd - cursor;
+			if (i < live.size())
+				cursor = live.get(i).getEnd();
+		}
+		return rs;
+	}
+
+	@Override
+	public void fillFreeBlockHistogram(FreeBlockHistogram histogram)
+	{
+		histogram.clear();
+		int cursor = 0;
+		for (int i = 0; i <= live.size(); i++)
+		{
+			int gapEnd = i < live.size() ? live.get(i).byteOffset : MEMORY_SIZE;
+			histogram.include(gapEnd - cursor);
+			if (i < live.size())
+				cursor = live.get(i).getEnd();
+		}
+	}
+
+	@Override
+	public int getOccupiedMemoryBytes()
+	{
+		return occupied;
+	}
+
+	@Override
+	public Allocator createNew()
+	{
+		return new SlidingCompactingAllocator(splitThreshold);
+	}
+}
@@ -31,18 +31,79 @@ public class StackAllocator implements Allocator
 		MemoryChunk rs = new MemoryChunk(offset, numBytes);
 		offset += numBytes;
 		allocated += numBytes;
-		counter.inc();
+		counter.inc(StepCategory.METADATA);
 		
 		return rs;
 	}
 
+	@Override
+	public MemoryChunk allocateAligned(int numBytes, int alignment, StepCounter counter)
+	{
+		if (numBytes <= 0)
+			return null;
+		//the skipped gap is never used again
+		int aligned = (offset + alignment - 1) & ~(alignment - 1);
+		if (aligned + numBytes > MEMORY_SIZE)
+			return null;
+		MemoryChunk rs = new MemoryChunk(aligned, numBytes, alignment, 0);
+		offset = aligned + numBytes;
+		allocated += numBytes;
+		counter.inc(StepCategory.METADATA);
+		return rs;
+	}
+
+	@Override
+	public boolean amortizesBatches()
+	{
+		return true;
+	}
+
+	@Override
+	public int allocateBatch(int[] sizes, int count, MemoryChunk[] out, StepCounter counter)
+	{
+		//a single pointer bump covers the longest prefix of the batch that fits
+		int n = 0;
+		long total = 0;
+		while (n < count && sizes[n] > 0 && offset + total + sizes[n] <= MEMORY_SIZE)
+			total += sizes[n++];
+		for (int i = 0; i < n; i++)
+		{
+			out[i] = new MemoryChunk(offset, sizes[i]);
+			offset += sizes[i];
+		}
+		allocated += (int)total;
+		counter.inc(StepCategory.METADATA);
+		return n;
+	}
+
+	@Override
+	public MemoryChunk reallocate(MemoryChunk chunk, int newSize, StepCounter counter)
+	{
+		if (newSize <= 0)
+			return null;
+		if (chunk.getEnd() != offset)
+		{
+			MemoryChunk rs = allocate(newSize, counter);
+			if (rs != null)
+				free(chunk, counter);
+			return rs;
+		}
+		//topmost chunk: move the pointer
+		if (chunk.byteOffset + newSize > MEMORY_SIZE)
+			return null;
+		offset = chunk.byteOffset + newSize;
+		allocated += newSize - chunk.byteSize;
+		counter.inc(StepCategory.METADATA);
+		return new MemoryChunk(chunk.byteOffset, newSize, chunk.alignment, chunk.paddingBytes);
+	}
+
 	@Override
 	public void free(MemoryChunk chunk, StepCounter counter)
 	{
 		if (chunk == null)
 			return;
 		allocated -= chunk.byteSize;
-		counter.inc();
+		counter.inc(StepCategory.METADATA);
 	}
 
 	@Override
@@ -61,6 +122,14 @@ public class StackAllocator implements Allocator
 		return rs;
 	}
 
+	@Override
+	public void fillFreeBlockHistogram(FreeBlockHistogram histogram)
+	{
+		histogram.clear();
+		histogram.includeUnusable(offset - allocated);
+		histogram.include(MEMORY_SIZE - offset);
+	}
+
 	@Override
 	public int getOccupiedMemoryBytes()
 	{
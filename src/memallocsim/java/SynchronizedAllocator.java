@@ -0,0 +1,295 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package memallocsim.java;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Makes an allocator usable from multiple threads by guarding every call
+ * with a single lock.
+ * Records how often the lock was contended, and how long callers waited
+ * for it.
+ * @author IronFox
+ */
+public class SynchronizedAllocator implements Allocator
+{
+	private final Allocator delegate;
+	private final ReentrantLock lock = new ReentrantLock();
+	/**
+	 * Statistics, only modified while holding the lock.
+	 * Should be read once no other thread uses the allocator
+	 */
+	private long acquisitions = 0, contended = 0, waitNanos = 0;
+
+	public SynchronizedAllocator(Allocator delegate)
+	{
+		this.delegate = delegate;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Synchronized("+delegate+")";
+	}
+
+	/**
+	 * Acquires the lock, recording contention.
+	 * May be used to combine multiple calls into one critical section.
+	 * The lock is reentrant
+	 */
+	public void lock()
+	{
+		if (lock.isHeldByCurrentThread())
+		{
+			lock.lock();	//nested acquisition, not counted
+			return;
+		}
+		if (lock.tryLock())
+		{
+			acquisitions++;
+			return;
+		}
+		long start = System.nanoTime();
+		lock.lock();
+		acquisitions++;
+		contended++;
+		waitNanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * Releases the lock acquired by lock()
+	 */
+	public void unlock()
+	{
+		lock.unlock();
+	}
+
+	/**
+	 * Retrieves the number of times the lock was acquired
+	 * @return Acquisition count
+	 */
+	public long getAcquisitions()
+	{
+		return acquisitions;
+	}
+
+	/**
+	 * Retrieves the number of times the lock was held by another thread
+	 * when it was requested
+	 * @return Contention count
+	 */
+	public long getContended()
+	{
+		return contended;
+	}
+
+	/**
+	 * Retrieves the total time callers waited for the lock
+	 * @return Wait time in nanoseconds
+	 */
+	public long getWaitNanos()
+	{
+		return waitNanos;
+	}
+
+	@Override
+	public MemoryChunk allocate(int numBytes, StepCounter stepCounter) throws Exception
+	{
+		lock();
+		try
+		{
+			return delegate.allocate(numBytes, stepCounter);
+		}
+		finally
+		{
+			unlock();
+		}
+	}
+
+	@Override
+	public void free(MemoryChunk chunk, StepCounter stepCounter) throws Exception
+	{
+		lock();
+		try
+		{
+			delegate.free(chunk, stepCounter);
+		}
+		finally
+		{
+			unlock();
+		}
+	}
+
+	@Override
+	public MemoryChunk allocateAligned(int numBytes, int alignment, StepCounter stepCounter) throws Exception
+	{
+		lock();
+		try
+		{
+			return delegate.allocateAligned(numBytes, alignment, stepCounter);
+		}
+		finally
+		{
+			unlock();
+		}
+	}
+
+	@Override
+	public MemoryChunk reallocate(MemoryChunk chunk, int newSize, StepCounter stepCounter) throws Exception
+	{
+		lock();
+		try
+		{
+			return delegate.reallocate(chunk, newSize, stepCounter);
+		}
+		finally
+		{
+			unlock();
+		}
+	}
+
+	@Override
+	public int allocateBatch(int[] sizes, int count, MemoryChunk[] out, StepCounter stepCounter) throws Exception
+	{
+		lock();
+		try
+		{
+			return delegate.allocateBatch(sizes, count, out, stepCounter);
+		}
+		finally
+		{
+			unlock();
+		}
+	}
+
+	@Override
+	public boolean amortizesBatches()
+	{
+		return delegate.amortizesBatches();
+	}
+
+	@Override
+	public void freeBatch(MemoryChunk[] chunks, int count, StepCounter stepCounter) throws Exception
+	{
+		lock();
+		try
+		{
+			delegate.freeBatch(chunks, count, stepCounter);
+		}
+		finally
+		{
+			unlock();
+		}
+	}
+
+	@Override
+	public boolean amortizesFrees()
+	{
+		return delegate.amortizesFrees();
+	}
+
+	@Override
+	public void setRelocationListener(RelocationListener listener)
+	{
+		delegate.setRelocationListener(listener);
+	}
+
+	@Override
+	public void setCollectionListener(CollectionListener listener)
+	{
+		delegate.setCollectionListener(listener);
+	}
+
+	@Override
+	public void setPageMap(PageMap pages)
+	{
+		delegate.setPageMap(pages);
+	}
+
+	/**
+	 * Not forwarded: callers are real threads, so owner-routing delegates
+	 * route by the calling thread
+	 */
+	@Override
+	public void setOwner(int owner)
+	{}
+
+	@Override
+	public void sampleDetails(DetailSink sink)
+	{
+		lock();
+		try
+		{
+			delegate.sampleDetails(sink);
+		}
+		finally
+		{
+			unlock();
+		}
+	}
+
+	@Override
+	public int getInternalFragmentationBytes()
+	{
+		lock();
+		try
+		{
+			return delegate.getInternalFragmentationBytes();
+		}
+		finally
+		{
+			unlock();
+		}
+	}
+
+	@Override
+	public int getExternalFragmentationBytes(int allocRequestBytes)
+	{
+		lock();
+		try
+		{
+			return delegate.getExternalFragmentationBytes(allocRequestBytes);
+		}
+		finally
+		{
+			unlock();
+		}
+	}
+
+	@Override
+	public void fillFreeBlockHistogram(FreeBlockHistogram histogram)
+	{
+		lock();
+		try
+		{
+			delegate.fillFreeBlockHistogram(histogram);
+		}
+		finally
+		{
+			unlock();
+		}
+	}
+
+	@Override
+	public int getOccupiedMemoryBytes()
+	{
+		lock();
+		try
+		{
+			return delegate.getOccupiedMemoryBytes();
+		}
+		finally
+		{
+			unlock();
+		}
+	}
+
+	@Override
+	public Allocator createNew()
+	{
+		return new SynchronizedAllocator(delegate.createNew());
+	}
+}
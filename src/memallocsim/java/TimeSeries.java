@@ -0,0 +1,180 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package memallocsim.java;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Value over operation index, in a fixed number of buckets.
+ * Each bucket aggregates a span of consecutive operations (count, sum,
+ * min, max). Once a position beyond the last bucket is included, adjacent
+ * buckets are merged pairwise and the span doubles, so memory stays
+ * constant regardless of the number of operations.
+ * Samples of multiple runs at the same position share a bucket.
+ * @author IronFox
+ */
+public class TimeSeries
+{
+	private final String name;
+	private final int[] count;
+	private final double[] sum, min, max;
+	private long span = 1;
+
+	/**
+	 * Creates a new series
+	 * @param name Name of the series, e.g. the sampled quantity
+	 * @param capacity Number of buckets. Must be even
+	 */
+	public TimeSeries(String name, int capacity)
+	{
+		if (capacity <= 0 || (capacity & 1) != 0)
+			throw new IllegalArgumentException("Capacity must be positive and even: "+capacity);
+		this.name = name;
+		count = new int[capacity];
+		sum = new double[capacity];
+		min = new double[capacity];
+		max = new double[capacity];
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Retrieves the number of operations aggregated per bucket
+	 * @return Span in operations
+	 */
+	public long getSpan()
+	{
+		return span;
+	}
+
+	/**
+	 * Retrieves the number of buckets
+	 * @return Bucket count
+	 */
+	public int getCapacity()
+	{
+		return count.length;
+	}
+
+	/**
+	 * Removes all samples and resets the span to 1
+	 */
+	public void clear()
+	{
+		for (int i = 0; i < count.length; i++)
+		{
+			count[i] = 0;
+			sum[i] = 0;
+		}
+		span = 1;
+	}
+
+	/**
+	 * Includes a sample
+	 * @param position Operation index within the run
+	 * @param value Sampled value
+	 */
+	public void include(long position, double value)
+	{
+		while (position >= span * count.length)
+			downsample();
+		include((int)(position / span), 1, value, value, value);
+	}
+
+	/**
+	 * Includes all samples of another series, e.g. the series of a single
+	 * run. The coarser span of both is kept
+	 * @param other Series to include. Must have the same capacity
+	 */
+	public void include(TimeSeries other)
+	{
+		if (other.count.length != count.length)
+			throw new IllegalArgumentException("Capacity mismatch: "+other.count.length+" != "+count.length);
+		while (span < other.span)
+			downsample();
+		for (int i = 0; i < other.count.length; i++)
+			if (other.count[i] > 0)
+				include((int)(i * other.span / span), other.count[i], other.sum[i], other.min[i], other.max[i]);
+	}
+
+	private void include(int b, int samples, double valueSum, double valueMin, double valueMax)
+	{
+		if (count[b] == 0)
+		{
+			min[b] = valueMin;
+			max[b] = valueMax;
+		}
+		else
+		{
+			min[b] = Math.min(min[b], valueMin);
+			max[b] = Math.max(max[b], valueMax);
+		}
+		count[b] += samples;
+		sum[b] += valueSum;
+	}
+
+	/**
+	 * Merges adjacent buckets, doubling the span
+	 */
+	private void downsample()
+	{
+		int half = count.length / 2;
+		for (int i = 0; i < half; i++)
+		{
+			int a = 2*i, b = 2*i+1;
+			if (count[a] == 0)
+			{
+				min[i] = min[b];
+				max[i] = max[b];
+			}
+			else if (count[b] == 0)
+			{
+				min[i] = min[a];
+				max[i] = max[a];
+			}
+			else
+			{
+				min[i] = Math.min(min[a], min[b]);
+				max[i] = Math.max(max[a], max[b]);
+			}
+			count[i] = count[a] + count[b];
+			sum[i] = sum[a] + sum[b];
+		}
+		for (int i = half; i < count.length; i++)
+		{
+			count[i] = 0;
+			sum[i] = 0;
+		}
+		span *= 2;
+	}
+
+	/**
+	 * Writes all non-empty buckets of the specified series as CSV.
+	 * Columns: series, first and last operation of the bucket, number of
+	 * samples, mean, min, max
+	 * @param file File to write to
+	 * @param series Series to write, in order
+	 * @throws IOException
+	 */
+	public static void writeCsv(Path file, TimeSeries... series) throws IOException
+	{
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file)))
+		{
+			out.println("series,first_operation,last_operation,samples,mean,min,max");
+			for (TimeSeries s : series)
+				for (int i = 0; i < s.count.length; i++)
+					if (s.count[i] > 0)
+						out.println(s.name+","+(i * s.span)+","+((i+1) * s.span - 1)+","+s.count[i]+","
+								+(s.sum[i] / s.count[i])+","+s.min[i]+","+s.max[i]);
+		}
+	}
+}
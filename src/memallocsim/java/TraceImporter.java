@@ -0,0 +1,505 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package memallocsim.java;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Streams recorded malloc/free traces into a SimulationState.
+ * Traces are processed one event at a time, so memory use only depends on
+ * the number of simultaneously live chunks, not on the trace length.
+ * <p>
+ * Text traces contain one event per line, fields separated by whitespace
+ * or commas. Empty lines and lines starting with # are ignored:
+ * <pre>
+ * &lt;timestamp&gt; malloc &lt;address&gt; &lt;size&gt;
+ * &lt;timestamp&gt; memalign &lt;address&gt; &lt;size&gt; &lt;alignment&gt;
+ * &lt;timestamp&gt; realloc &lt;address&gt; &lt;size&gt; &lt;old address&gt;
+ * &lt;timestamp&gt; free &lt;address&gt;
+ * </pre>
+ * Addresses may be decimal or hexadecimal (0x prefix).
+ * Frees of unknown addresses (e.g. allocated before recording started)
+ * are skipped.
+ * <p>
+ * Text traces can be converted to a compact binary form, in which
+ * addresses are replaced by dense slot numbers and all numbers are stored
+ * as variable-length integers. Binary traces are detected automatically.
+ * @author IronFox
+ */
+public class TraceImporter
+{
+	private final static int MAGIC = 0x4D415452;	//"MATR"
+	private final static int VERSION = 1;
+
+	private final static int MALLOC = 0, FREE = 1, REALLOC = 2, MEMALIGN = 3;
+
+	/**
+	 * Receives the events of a trace, with addresses mapped to slots
+	 */
+	private interface EventHandler
+	{
+		/**
+		 * Handles a single event
+		 * @param op Operation (MALLOC, FREE, REALLOC, MEMALIGN)
+		 * @param timestamp Timestamp as recorded
+		 * @param slot Dense identifier of the chunk, reused after the chunk
+		 * is freed
+		 * @param size Requested bytes. Unused by FREE
+		 * @param alignment Requested alignment. Only used by MEMALIGN
+		 */
+		void handle(int op, long timestamp, int slot, int size, int alignment) throws Exception;
+	}
+
+	private long events = 0, skipped = 0;
+
+	/**
+	 * Retrieves the number of events processed by the last operation
+	 * @return Event count
+	 */
+	public long getEvents()
+	{
+		return events;
+	}
+
+	/**
+	 * Retrieves the number of trace lines that could not be matched to a
+	 * live chunk and were skipped by the last operation
+	 * @return Line count
+	 */
+	public long getSkipped()
+	{
+		return skipped;
+	}
+
+	/**
+	 * Replays a text or binary trace on all allocators of a state.
+	 * Stops early once all allocators have faulted. Does not end the run
+	 * @param file Trace to replay
+	 * @param state State to replay the trace on
+	 * @throws Exception
+	 */
+	public void replay(Path file, SimulationState state) throws Exception
+	{
+		Replay replay = new Replay(state);
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16))
+		{
+			if (isBinary(in))
+				readBinary(new DataInputStream(in), replay);
+			else
+				readText(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)), replay);
+		}
+		catch (SimulationState.AllAllocatorsHaveFaultedException ex)
+		{}
+	}
+
+	/**
+	 * Converts a text trace to the binary form
+	 * @param text Text trace to read
+	 * @param binary Binary trace to write
+	 * @throws IOException
+	 */
+	public void convert(Path text, Path binary) throws IOException
+	{
+		try (BufferedReader in = Files.newBufferedReader(text, StandardCharsets.UTF_8);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(binary), 1 << 16)))
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			long[] lastTimestamp = {0};
+			readText(in, (op, timestamp, slot, size, alignment) ->
+			{
+				out.writeByte(op);
+				writeVarLong(out, zigZag(timestamp - lastTimestamp[0]));
+				lastTimestamp[0] = timestamp;
+				writeVarLong(out, slot);
+				if (op != FREE)
+					writeVarLong(out, size);
+				if (op == MEMALIGN)
+					writeVarLong(out, alignment);
+			});
+		}
+		catch (IOException ex)
+		{
+			throw ex;
+		}
+		catch (Exception ex)
+		{
+			throw new IOException(ex);
+		}
+	}
+
+	private static boolean isBinary(InputStream in) throws IOException
+	{
+		in.mark(4);
+		byte[] head = new byte[4];
+		int n = 0, r;
+		while (n < 4 && (r = in.read(head, n, 4 - n)) > 0)
+			n += r;
+		in.reset();
+		return n == 4 && ((head[0] & 0xFF) << 24 | (head[1] & 0xFF) << 16 | (head[2] & 0xFF) << 8 | (head[3] & 0xFF)) == MAGIC;
+	}
+
+	private static long zigZag(long v)
+	{
+		return (v << 1) ^ (v >> 63);
+	}
+
+	private static long unZigZag(long v)
+	{
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private static void writeVarLong(DataOutputStream out, long v) throws IOException
+	{
+		while ((v & ~0x7FL) != 0)
+		{
+			out.writeByte((int)(v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out.writeByte((int)v);
+	}
+
+	private static long readVarLong(DataInputStream in) throws IOException
+	{
+		long rs = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			int b = in.readUnsignedByte();
+			rs |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return rs;
+		}
+		throw new IOException("Malformed variable-length integer");
+	}
+
+	private void readBinary(DataInputStream in, EventHandler handler) throws Exception
+	{
+		in.readInt();
+		int version = in.readInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported binary trace version "+version);
+		events = 0;
+		skipped = 0;
+		long timestamp = 0;
+		int op;
+		while ((op = in.read()) >= 0)
+		{
+			try
+			{
+				timestamp += unZigZag(readVarLong(in));
+				int slot = (int)readVarLong(in);
+				int size = op != FREE ? (int)readVarLong(in) : 0;
+				int alignment = op == MEMALIGN ? (int)readVarLong(in) : 1;
+				events++;
+				handler.handle(op, timestamp, slot, size, alignment);
+			}
+			catch (EOFException ex)
+			{
+				throw new IOException("Binary trace ends within event "+(events+1));
+			}
+		}
+	}
+
+	/**
+	 * Assigns dense slots to live addresses
+	 */
+	private static class SlotMap
+	{
+		private final HashMap<Long, Integer> slots = new HashMap<>();
+		private int[] freeSlots = new int[16];
+		private int numFree = 0, next = 0;
+
+		int acquire(long address)
+		{
+			int slot = numFree > 0 ? freeSlots[--numFree] : next++;
+			slots.put(address, slot);
+			return slot;
+		}
+
+		/**
+		 * Removes the mapping of an address
+		 * @return Slot of the address, or -1 if not mapped
+		 */
+		int release(long address)
+		{
+			Integer slot = slots.remove(address);
+			if (slot == null)
+				return -1;
+			if (numFree == freeSlots.length)
+				freeSlots = Arrays.copyOf(freeSlots, numFree*2);
+			freeSlots[numFree++] = slot;
+			return slot;
+		}
+
+		/**
+		 * Moves a live slot to a new address
+		 * @return Slot of the old address, or -1 if not mapped
+		 */
+		int move(long from, long to)
+		{
+			Integer slot = slots.remove(from);
+			if (slot == null)
+				return -1;
+			slots.put(to, slot);
+			return slot;
+		}
+	}
+
+	private static long parseAddress(String s)
+	{
+		if (s.startsWith("0x") || s.startsWith("0X"))
+			return Long.parseUnsignedLong(s.substring(2), 16);
+		return Long.parseUnsignedLong(s);
+	}
+
+	private static long parseTimestamp(String s)
+	{
+		try
+		{
+			return Long.parseLong(s);
+		}
+		catch (NumberFormatException ex)
+		{
+			return Math.round(Double.parseDouble(s));
+		}
+	}
+
+	/**
+	 * Parses a size, clamping it to the int range.
+	 * Oversized requests fail in the simulated address space anyway
+	 */
+	private static int parseSize(String s)
+	{
+		long v = Long.parseLong(s);
+		return (int)Math.min(Math.max(v, 0), Integer.MAX_VALUE);
+	}
+
+	private void readText(BufferedReader in, EventHandler handler) throws Exception
+	{
+		events = 0;
+		skipped = 0;
+		SlotMap map = new SlotMap();
+		String[] fields = new String[5];
+		String line;
+		long lineNumber = 0;
+		while ((line = in.readLine()) != null)
+		{
+			lineNumber++;
+			int n = split(line, fields);
+			if (n == 0 || fields[0].startsWith("#"))
+				continue;
+			try
+			{
+				if (n < 3)
+					throw new IllegalArgumentException("expected at least 3 fields");
+				long timestamp = parseTimestamp(fields[0]);
+				long address = parseAddress(fields[2]);
+				switch (fields[1])
+				{
+					case "malloc":
+					case "memalign":
+					{
+						if (n < 4 || (fields[1].equals("memalign") && n < 5))
+							throw new IllegalArgumentException("missing size or alignment");
+						if (address == 0)
+						{
+							skipped++;	//failed allocation
+							break;
+						}
+						int old = map.release(address);
+						if (old >= 0)
+						{
+							//the free of the previous chunk was not recorded
+							skipped++;
+							events++;
+							handler.handle(FREE, timestamp, old, 0, 1);
+						}
+						int alignment = 1;
+						if (fields[1].equals("memalign"))
+						{
+							alignment = parseSize(fields[4]);
+							if (Integer.bitCount(alignment) != 1)
+								throw new IllegalArgumentException("alignment must be a power of two: "+alignment);
+						}
+						events++;
+						handler.handle(alignment > 1 ? MEMALIGN : MALLOC, timestamp, map.acquire(address), parseSize(fields[3]), alignment);
+						break;
+					}
+					case "free":
+					{
+						if (address == 0)
+							break;
+						int slot = map.release(address);
+						if (slot < 0)
+						{
+							skipped++;
+							break;
+						}
+						events++;
+						handler.handle(FREE, timestamp, slot, 0, 1);
+						break;
+					}
+					case "realloc":
+					{
+						if (n < 5)
+							throw new IllegalArgumentException("missing size or old address");
+						int size = parseSize(fields[3]);
+						long from = parseAddress(fields[4]);
+						if (address == 0 && size > 0)
+						{
+							skipped++;	//failed reallocation, the old chunk stays valid
+							break;
+						}
+						if (from == 0)
+						{
+							//realloc(NULL, n) allocates
+							events++;
+							handler.handle(MALLOC, timestamp, map.acquire(address), size, 1);
+							break;
+						}
+						if (size == 0)
+						{
+							//realloc(p, 0) frees
+							int slot = map.release(from);
+							if (slot < 0)
+							{
+								skipped++;
+								break;
+							}
+							events++;
+							handler.handle(FREE, timestamp, slot, 0, 1);
+							break;
+						}
+						if (address != from)
+						{
+							int stale = map.release(address);
+							if (stale >= 0)
+							{
+								skipped++;
+								events++;
+								handler.handle(FREE, timestamp, stale, 0, 1);
+							}
+						}
+						int slot = map.move(from, address);
+						if (slot < 0)
+						{
+							//unknown origin: treat as new allocation
+							skipped++;
+							events++;
+							handler.handle(MALLOC, timestamp, map.acquire(address), size, 1);
+							break;
+						}
+						events++;
+						handler.handle(REALLOC, timestamp, slot, size, 1);
+						break;
+					}
+					default:
+						throw new IllegalArgumentException("unknown operation '"+fields[1]+"'");
+				}
+			}
+			catch (IllegalArgumentException ex)
+			{
+				throw new IOException("Trace line "+lineNumber+": "+ex.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Splits a line at whitespace and commas
+	 * @return Number of fields found, at most fields.length
+	 */
+	private static int split(String line, String[] fields)
+	{
+		int n = 0, i = 0, len = line.length();
+		while (n < fields.length)
+		{
+			while (i < len && isSeparator(line.charAt(i)))
+				i++;
+			if (i == len)
+				break;
+			int start = i;
+			while (i < len && !isSeparator(line.charAt(i)))
+				i++;
+			fields[n++] = line.substring(start, i);
+		}
+		return n;
+	}
+
+	private static boolean isSeparator(char c)
+	{
+		return c == ' ' || c == '\t' || c == ',';
+	}
+
+	/**
+	 * Applies trace events to a simulation state.
+	 * Chunk indices are kept in sync with slots by freeing via
+	 * SimulationState.freeUnordered()
+	 */
+	private static class Replay implements EventHandler
+	{
+		private final SimulationState state;
+		private int[] slotToIndex = new int[256], indexToSlot = new int[256];
+
+		Replay(SimulationState state)
+		{
+			this.state = state;
+			//traces record no owner, so all requests belong to a single one
+			state.setOwner(0);
+		}
+
+		@Override
+		public void handle(int op, long timestamp, int slot, int size, int alignment) throws Exception
+		{
+			if (state.allFaulted())
+				throw state.new AllAllocatorsHaveFaultedException();
+			switch (op)
+			{
+				case MALLOC:
+				case MEMALIGN:
+				{
+					//malloc(0) still returns a distinct chunk
+					state.allocate(Math.max(size, 1), alignment);
+					int index = state.getNumAllocatedChunks() - 1;
+					if (slot >= slotToIndex.length)
+						slotToIndex = Arrays.copyOf(slotToIndex, Math.max(slot+1, slotToIndex.length*2));
+					if (index >= indexToSlot.length)
+						indexToSlot = Arrays.copyOf(indexToSlot, indexToSlot.length*2);
+					slotToIndex[slot] = index;
+					indexToSlot[index] = slot;
+					break;
+				}
+				case FREE:
+				{
+					int index = slotToIndex[slot];
+					int last = state.getNumAllocatedChunks() - 1;
+					int moved = indexToSlot[last];
+					state.freeUnordered(index);
+					indexToSlot[index] = moved;
+					slotToIndex[moved] = index;
+					break;
+				}
+				case REALLOC:
+					state.reallocate(slotToIndex[slot], Math.max(size, 1));
+					break;
+				default:
+					throw new IOException("Unknown trace operation "+op);
+			}
+		}
+	}
+}